@@ -0,0 +1,630 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.activiti.bdd.test.activiti.ExtendedRule;
+import org.activiti.bdd.test.activiti.JobWaiter;
+import org.activiti.engine.history.HistoricProcessInstance;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.ExecutionEntity;
+import org.activiti.engine.runtime.Execution;
+import org.activiti.engine.runtime.NativeExecutionQuery;
+import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.engine.test.ActivitiRule;
+
+/**
+ * Builds and runs a scenario for a whole cohort of process instances, for
+ * example to load test a process using the same vocabulary as its acceptance
+ * tests.
+ *
+ * <pre>
+ * new ActivitiBatchSpec(activitiRule, &quot;loadTest&quot;)
+ *         .usingThreads(4).inTransactionsOf(50)
+ *         .whenEventsOccur(&quot;1000 orders are placed&quot;,
+ *                 &quot;Order&quot;, 1000, ActivitiSpec.buildMap(), null)
+ *         .thenAllComplete()
+ *         .thenPercentCompletedWithin(95, 2000);
+ * </pre>
+ *
+ * @author Tim Stephenson
+ */
+public class ActivitiBatchSpec {
+
+    /** Maximum number of ids to pass to a single query. */
+    private static final int QUERY_CHUNK_SIZE = 500;
+
+    private final ActivitiRule activitiRule;
+
+    private final String specName;
+
+    private final List<String> processInstanceIds = Collections
+            .synchronizedList(new ArrayList<String>());
+
+    private int transactionSize = 1;
+
+    private int threads = 1;
+
+    private final List<String> correlationMisses = Collections
+            .synchronizedList(new ArrayList<String>());
+
+    public ActivitiBatchSpec(ActivitiRule activitiRule, String name) {
+        this.activitiRule = activitiRule;
+        this.specName = name;
+        writeBddPhrase("Instantiated batch specification for scenario %1$s",
+                specName);
+    }
+
+    /**
+     * @param preCondition
+     *            Natural language definition of scenario pre-conditions.
+     * @return The updated specification.
+     */
+    public ActivitiBatchSpec given(String preCondition) {
+        writeBddPhrase("%1$sGIVEN: %2$s", System.getProperty("line.separator"),
+                preCondition);
+        return this;
+    }
+
+    /**
+     * Write a BDD phrase (Given, When or Then ...).
+     *
+     * <p>
+     * Default implementation writes to System.out.
+     *
+     * @param format
+     * @param args
+     *            Substitution arguments for phrase.
+     */
+    protected void writeBddPhrase(String format, Object... args) {
+        System.out.println(String.format(format, args));
+    }
+
+    /**
+     * @param size
+     *            Number of instances to start in each engine transaction,
+     *            default 1.
+     * @return The updated specification.
+     */
+    public ActivitiBatchSpec inTransactionsOf(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException(
+                    "Transaction size must be at least 1");
+        }
+        this.transactionSize = size;
+        return this;
+    }
+
+    /**
+     * @param threads
+     *            Number of threads to start instances from, default 1.
+     * @return The updated specification.
+     */
+    public ActivitiBatchSpec usingThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "Number of threads must be at least 1");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @return Ids of every process instance started by the specification.
+     */
+    public List<String> getProcessInstanceIds() {
+        synchronized (processInstanceIds) {
+            return new ArrayList<String>(processInstanceIds);
+        }
+    }
+
+    /**
+     * Define the start event for a cohort of business processes.
+     *
+     * @param eventDescription
+     *            'When' phase of scenario.
+     * @param key
+     *            Specifies the Process Definition to start.
+     * @param count
+     *            Number of instances to start.
+     * @param putVars
+     *            Process variables to inject at start of every instance.
+     * @param tenantId
+     *            Process tenant, may be null.
+     * @return The updated specification.
+     */
+    public ActivitiBatchSpec whenEventsOccur(String eventDescription,
+            final String key, int count, final Map<String, Object> putVars,
+            final String tenantId) throws Exception {
+        long start = System.currentTimeMillis();
+        List<Callable<Void>> batches = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < count; i += transactionSize) {
+            final int batchSize = Math.min(transactionSize, count - i);
+            batches.add(new Callable<Void>() {
+                public Void call() {
+                    if (batchSize == 1) {
+                        register(Collections.singletonList(startProcessInstance(
+                                key, putVars, tenantId)));
+                    } else {
+                        // only record ids once the transaction has committed
+                        register(activitiRule
+                                .getManagementService().executeCommand(
+                                        new Command<List<String>>() {
+                                            public List<String> execute(
+                                                    CommandContext commandContext) {
+                                                // nested service calls join
+                                                // this command's transaction
+                                                List<String> ids = new ArrayList<String>();
+                                                for (int j = 0; j < batchSize; j++) {
+                                                    ids.add(startProcessInstance(
+                                                            key, putVars,
+                                                            tenantId));
+                                                }
+                                                return ids;
+                                            }
+                                        }));
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(batches);
+
+        writeBddPhrase("WHEN: %1$s (%2$d instances started in %3$d ms)",
+                eventDescription, count, System.currentTimeMillis() - start);
+        return this;
+    }
+
+    /**
+     * Add instances to the cohort and let an {@link ExtendedRule} purge them.
+     */
+    private void register(List<String> ids) {
+        processInstanceIds.addAll(ids);
+        if (activitiRule instanceof ExtendedRule) {
+            for (String id : ids) {
+                ((ExtendedRule) activitiRule).registerProcessInstance(id);
+            }
+        }
+    }
+
+    /**
+     * Start the latest version of the definition, resolved once per engine
+     * rather than for every instance.
+     */
+    private String startProcessInstance(String key,
+            Map<String, Object> putVars, String tenantId) {
+        HashMap<String, Object> vars = new HashMap<String, Object>(putVars);
+        String definitionId = ProcessDefinitionCache.forEngine(
+                activitiRule.getProcessEngine()).resolveByKey(key, tenantId);
+        ProcessInstance processInstance;
+        if (definitionId != null) {
+            processInstance = activitiRule.getRuntimeService()
+                    .startProcessInstanceById(definitionId, vars);
+        } else if (tenantId == null) {
+            // let the engine report the missing definition as usual
+            processInstance = activitiRule.getRuntimeService()
+                    .startProcessInstanceByKey(key, vars);
+        } else {
+            processInstance = activitiRule.getRuntimeService()
+                    .startProcessInstanceByKeyAndTenantId(key, vars, tenantId);
+        }
+        return processInstance.getId();
+    }
+
+    /**
+     * Run the tasks on the configured number of threads, failing with the
+     * first exception encountered once all have finished.
+     */
+    protected void runAll(List<? extends Callable<Void>> tasks)
+            throws Exception {
+        if (threads == 1) {
+            for (Callable<Void> task : tasks) {
+                task.call();
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (Callable<Void> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            Exception failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof Exception ? (Exception) e
+                                .getCause() : e;
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Deliver the same follow-up message to every process instance in the
+     * cohort.
+     *
+     * @param eventDescription
+     *            'When' phase of scenario.
+     * @param msgName
+     *            Message name, also the id of the activity waiting for it.
+     * @param messageResource
+     *            Classpath resource holding the JSON payload or the payload
+     *            itself.
+     * @return The updated specification.
+     * @see #whenFollowUpMsgsReceived(String, String, Map)
+     */
+    public ActivitiBatchSpec whenFollowUpMsgsReceived(String eventDescription,
+            String msgName, String messageResource) throws Exception {
+        String json = getJson(messageResource);
+        Map<String, String> payloads = new LinkedHashMap<String, String>();
+        for (String processInstanceId : getProcessInstanceIds()) {
+            payloads.put(processInstanceId, json);
+        }
+        return whenFollowUpMsgsReceived(eventDescription, msgName, payloads);
+    }
+
+    /**
+     * Deliver a follow-up message to each of many waiting process instances.
+     *
+     * <p>
+     * The waiting executions are found with one query per chunk of instances
+     * and signalled in transactions of the configured size on the configured
+     * number of threads. Instances not waiting for the message, or waiting at more than
+     * one execution, are recorded as misses rather than failing the step.
+     *
+     * @param eventDescription
+     *            'When' phase of scenario.
+     * @param msgName
+     *            Message name, also the id of the activity waiting for it.
+     * @param payloads
+     *            JSON payload keyed by the id of the process instance to
+     *            deliver it to.
+     * @return The updated specification.
+     * @see #thenAllCorrelated()
+     */
+    public ActivitiBatchSpec whenFollowUpMsgsReceived(String eventDescription,
+            final String msgName, Map<String, String> payloads)
+            throws Exception {
+        long start = System.currentTimeMillis();
+        Map<String, String> executionIds = findWaitingExecutions(msgName,
+                payloads.keySet());
+        final List<String[]> deliveries = new ArrayList<String[]>();
+        int missed = 0;
+        for (Map.Entry<String, String> entry : payloads.entrySet()) {
+            String executionId = executionIds.get(entry.getKey());
+            if (executionId == null) {
+                correlationMisses.add(entry.getKey());
+                missed++;
+            } else {
+                deliveries.add(new String[] { executionId, entry.getValue() });
+            }
+        }
+
+        List<Callable<Void>> batches = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < deliveries.size(); i += transactionSize) {
+            final List<String[]> batch = deliveries.subList(i,
+                    Math.min(i + transactionSize, deliveries.size()));
+            batches.add(new Callable<Void>() {
+                public Void call() {
+                    if (batch.size() == 1) {
+                        signal(msgName, batch.get(0));
+                    } else {
+                        activitiRule.getManagementService().executeCommand(
+                                new Command<Void>() {
+                                    public Void execute(
+                                            CommandContext commandContext) {
+                                        for (String[] delivery : batch) {
+                                            signal(msgName, delivery);
+                                        }
+                                        return null;
+                                    }
+                                });
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(batches);
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        writeBddPhrase(
+                "WHEN: %1$s (%2$d messages correlated in %3$d ms, %4$.1f per second, %5$d missed)",
+                eventDescription, deliveries.size(), elapsed,
+                deliveries.size() * 1000.0d / elapsed, missed);
+        return this;
+    }
+
+    /**
+     * @return Execution id keyed by process instance id for each of the
+     *         process instances with exactly one execution waiting at the
+     *         activity. Only the specified instances are queried, in chunks,
+     *         so other scenarios' executions on a shared engine are neither
+     *         loaded nor signalled.
+     */
+    private Map<String, String> findWaitingExecutions(String activityId,
+            Set<String> processInstanceIds) {
+        Map<String, String> executionIds = new HashMap<String, String>();
+        Set<String> ambiguous = new HashSet<String>();
+        for (Execution execution : queryWaitingExecutions(activityId,
+                processInstanceIds)) {
+            String piid = execution.getProcessInstanceId();
+            if (executionIds.put(piid, execution.getId()) != null) {
+                ambiguous.add(piid);
+            }
+        }
+        executionIds.keySet().removeAll(ambiguous);
+        return executionIds;
+    }
+
+    /**
+     * @return The executions at the activity of the specified process
+     *         instances, queried in chunks.
+     */
+    private List<Execution> queryWaitingExecutions(String activityId,
+            Collection<String> processInstanceIds) {
+        List<Execution> executions = new ArrayList<Execution>();
+        List<String> ids = new ArrayList<String>(processInstanceIds);
+        for (int i = 0; i < ids.size(); i += QUERY_CHUNK_SIZE) {
+            List<String> chunk = ids.subList(i,
+                    Math.min(i + QUERY_CHUNK_SIZE, ids.size()));
+            NativeExecutionQuery query = activitiRule.getRuntimeService()
+                    .createNativeExecutionQuery()
+                    .sql(waitingExecutionsSql(chunk.size()))
+                    .parameter("activityId", activityId);
+            for (int j = 0; j < chunk.size(); j++) {
+                query.parameter("id" + j, chunk.get(j));
+            }
+            executions.addAll(query.list());
+        }
+        return executions;
+    }
+
+    /**
+     * @return SQL selecting the executions at the activity whose process
+     *         instance id is one of the parameters id0, id1 ...
+     */
+    private String waitingExecutionsSql(int size) {
+        StringBuilder sql = new StringBuilder("SELECT * FROM ")
+                .append(activitiRule.getManagementService().getTableName(
+                        ExecutionEntity.class))
+                .append(" WHERE ACT_ID_ = #{activityId} AND PROC_INST_ID_ IN (");
+        for (int i = 0; i < size; i++) {
+            sql.append(i == 0 ? "" : ", ").append("#{id").append(i)
+                    .append("}");
+        }
+        return sql.append(")").toString();
+    }
+
+    private void signal(String msgName, String[] delivery) {
+        HashMap<String, Object> vars = new HashMap<String, Object>();
+        vars.put("messageName", adapt(msgName));
+        vars.put(adapt(msgName), delivery[1]);
+        activitiRule.getRuntimeService().signal(delivery[0], vars);
+    }
+
+    private String adapt(String msgName) {
+        return msgName.replace('.', '_');
+    }
+
+    /**
+     * @param messageResource
+     *            Classpath resource holding the JSON or the JSON itself.
+     * @return JSON message.
+     */
+    protected String getJson(String messageResource) {
+        InputStream is = getClass().getResourceAsStream(messageResource);
+        if (is == null) {
+            // assume message supplied directly
+            return messageResource;
+        }
+        Scanner scanner = new Scanner(new InputStreamReader(is));
+        try {
+            return scanner.useDelimiter("\\A").next();
+        } finally {
+            scanner.close();
+        }
+    }
+
+    /**
+     * @return Ids of the process instances follow-up messages could not be
+     *         correlated to.
+     */
+    public List<String> getCorrelationMisses() {
+        synchronized (correlationMisses) {
+            return new ArrayList<String>(correlationMisses);
+        }
+    }
+
+    /**
+     * Verify that every follow-up message was correlated to a waiting process
+     * instance.
+     *
+     * @return The updated specification.
+     */
+    public ActivitiBatchSpec thenAllCorrelated() {
+        List<String> misses = getCorrelationMisses();
+        assertTrue(String.format(
+                "%1$d messages could not be correlated, e.g. to %2$s",
+                misses.size(), misses.subList(0, Math.min(10, misses.size()))),
+                misses.isEmpty());
+        writeBddPhrase("THEN: All messages were correlated");
+        return this;
+    }
+
+    /**
+     * A scenario event allowing the process engine to execute all jobs. Fails
+     * as soon as any job throws an exception.
+     *
+     * @param timeout
+     *            Maximum milli-seconds to allow the engine to execute.
+     * @return The updated specification.
+     */
+    public ActivitiBatchSpec whenExecuteAllJobs(int timeout) {
+        new JobWaiter(activitiRule.getProcessEngine()).waitForAllJobs(timeout);
+        writeBddPhrase("WHEN: executed all jobs");
+        return this;
+    }
+
+    /**
+     * @return The historic record of every process instance in the cohort.
+     */
+    protected List<HistoricProcessInstance> getHistoricProcessInstances() {
+        List<String> ids = getProcessInstanceIds();
+        List<HistoricProcessInstance> list = new ArrayList<HistoricProcessInstance>(
+                ids.size());
+        for (int i = 0; i < ids.size(); i += QUERY_CHUNK_SIZE) {
+            Set<String> chunk = new HashSet<String>(ids.subList(i,
+                    Math.min(i + QUERY_CHUNK_SIZE, ids.size())));
+            list.addAll(activitiRule.getHistoryService()
+                    .createHistoricProcessInstanceQuery()
+                    .processInstanceIds(chunk).list());
+        }
+        return list;
+    }
+
+    /**
+     * Verify that every process instance in the cohort is waiting at the
+     * specified activity.
+     *
+     * @param activityId
+     *            Key (BPMN id) for user task, receive task or intermediate
+     *            event.
+     * @return The updated specification.
+     */
+    public ActivitiBatchSpec thenAllWaitingAt(String activityId) {
+        Set<String> cohort = new HashSet<String>(getProcessInstanceIds());
+        Set<String> waiting = new HashSet<String>();
+        for (Execution execution : queryWaitingExecutions(activityId, cohort)) {
+            waiting.add(execution.getProcessInstanceId());
+        }
+        assertEquals(String.format(
+                "Only %1$d of %2$d processes waiting at '%3$s'",
+                waiting.size(), cohort.size(), activityId), cohort.size(),
+                waiting.size());
+        writeBddPhrase("THEN: All %1$d processes waiting at '%2$s'",
+                waiting.size(), activityId);
+        return this;
+    }
+
+    /**
+     * Verify that every process instance in the cohort is complete.
+     *
+     * @return The updated specification.
+     */
+    public ActivitiBatchSpec thenAllComplete() {
+        List<HistoricProcessInstance> list = getHistoricProcessInstances();
+        int complete = 0;
+        for (HistoricProcessInstance hpi : list) {
+            if (hpi.getEndTime() != null) {
+                complete++;
+            }
+        }
+        assertEquals(String.format("Only %1$d of %2$d processes complete",
+                complete, processInstanceIds.size()),
+                processInstanceIds.size(), complete);
+        writeBddPhrase("THEN: All %1$d processes are complete", complete);
+        return this;
+    }
+
+    /**
+     * Verify that every process instance in the cohort completed in the
+     * specified BPMN end event.
+     *
+     * @param endEventId
+     * @return The updated specification.
+     */
+    public ActivitiBatchSpec thenAllEndedInEvent(String endEventId) {
+        List<HistoricProcessInstance> list = getHistoricProcessInstances();
+        int matched = 0;
+        for (HistoricProcessInstance hpi : list) {
+            if (hpi.getEndTime() != null
+                    && endEventId.equals(hpi.getEndActivityId())) {
+                matched++;
+            }
+        }
+        assertEquals(String.format(
+                "Only %1$d of %2$d processes ended in %3$s", matched,
+                processInstanceIds.size(), endEventId),
+                processInstanceIds.size(), matched);
+        writeBddPhrase("THEN: All %1$d processes ended in the end event %2$s",
+                matched, endEventId);
+        return this;
+    }
+
+    /**
+     * Verify that at least the specified percentage of the cohort completed
+     * within the time budget, measured in engine time from start to end of
+     * each instance.
+     *
+     * @param percent
+     *            For example 95.
+     * @param maxMillis
+     *            Time budget for each process instance.
+     * @return The updated specification.
+     */
+    public ActivitiBatchSpec thenPercentCompletedWithin(double percent,
+            long maxMillis) {
+        List<HistoricProcessInstance> list = getHistoricProcessInstances();
+        int withinBudget = 0;
+        for (HistoricProcessInstance hpi : list) {
+            if (hpi.getDurationInMillis() != null
+                    && hpi.getDurationInMillis() <= maxMillis) {
+                withinBudget++;
+            }
+        }
+        int total = processInstanceIds.size();
+        double actual = total == 0 ? 100.0d : withinBudget * 100.0d / total;
+        assertTrue(String.format(
+                "Only %1$.1f%% of processes completed within %2$d ms, expected %3$.1f%%",
+                actual, maxMillis, percent), actual >= percent);
+        writeBddPhrase(
+                "THEN: %1$.1f%% of processes completed within %2$d ms",
+                actual, maxMillis);
+        return this;
+    }
+}
@@ -21,26 +21,60 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.io.Reader;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Scanner;
 import java.util.Set;
-
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.activiti.bdd.test.activiti.CommandProfiler;
+import org.activiti.bdd.test.activiti.DatabaseSnapshot;
+import org.activiti.bdd.test.activiti.ExtendedRule;
+import org.activiti.bdd.test.activiti.IdentityFixtureLoader;
+import org.activiti.bdd.test.activiti.JobWaiter;
+import org.activiti.bdd.test.activiti.ProcessStateTracer;
+import org.activiti.bdd.test.mailserver.TestMailServer;
 import org.activiti.engine.ActivitiObjectNotFoundException;
+import org.activiti.engine.ProcessEngine;
 import org.activiti.engine.history.HistoricActivityInstance;
 import org.activiti.engine.history.HistoricProcessInstance;
 import org.activiti.engine.history.HistoricTaskInstance;
+import org.activiti.engine.history.HistoricVariableInstance;
+import org.activiti.engine.identity.Group;
+import org.activiti.engine.identity.NativeGroupQuery;
+import org.activiti.engine.identity.NativeUserQuery;
 import org.activiti.engine.identity.User;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.history.HistoryLevel;
+import org.activiti.engine.impl.persistence.entity.GroupEntity;
+import org.activiti.engine.impl.persistence.entity.UserEntity;
 import org.activiti.engine.impl.test.JobTestHelper;
 import org.activiti.engine.runtime.Execution;
+import org.activiti.engine.runtime.ExecutionQuery;
 import org.activiti.engine.runtime.Job;
 import org.activiti.engine.runtime.ProcessInstance;
 import org.activiti.engine.task.Task;
@@ -57,6 +91,9 @@ public class ActivitiSpec {
 
     private static final Set<String> emptySet = new HashSet<String>();
 
+    /** Maximum number of ids in a single SQL IN clause. */
+    private static final int IN_CLAUSE_SIZE = 500;
+
     private ActivitiRule activitiRule;
 
     private String specName;
@@ -65,14 +102,54 @@ public class ActivitiSpec {
 
     private String messageName;
 
-    private HashMap<String, Object> collectVars;
+    private Map<String, Object> collectVars;
+
+    private Map<String, Long> extensionDurations;
 
     private String processDefinitionKey;
 
+    private long lastPhraseNanos = System.nanoTime();
+
+    private long lastPhraseCommands;
+
+    /** Profiler that lastPhraseCommands was read from, if any. */
+    private CommandProfiler baselineProfiler;
+
+    private String lastStep;
+
+    private long lastStepNanos;
+
+    private long lastPhraseCpuNanos = StepUsage.currentThreadCpuNanos();
+
+    private long lastPhraseAllocatedBytes = StepUsage
+            .currentThreadAllocatedBytes();
+
+    private long lastPhraseThreadId = Thread.currentThread().getId();
+
+    private final Map<String, StepUsage> stepUsage = new LinkedHashMap<String, StepUsage>();
+
+    /** Names of the public methods that may be steps, guarded by stepUsage. */
+    private Set<String> stepMethods;
+
+    /** Commands issued by the last step or -1 if not profiled. */
+    private long lastStepCommands = -1;
+
+    private long lastFanOutMillis;
+
+    private ProcessStateTracer stateTracer;
+
+    private TestMailServer mailServer;
+
+    /** Level to restore, when changed on a plain ActivitiRule's engine. */
+    private HistoryLevel previousHistoryLevel;
+
     public ActivitiSpec(ActivitiRule activitiRule, String name) {
         this.activitiRule = activitiRule;
         this.specName = name;
-        this.collectVars = new HashMap<String, Object>();
+        // extensions may collect variables concurrently
+        this.collectVars = new ConcurrentHashMap<String, Object>();
+        this.extensionDurations = Collections
+                .synchronizedMap(new LinkedHashMap<String, Long>());
         writeBddPhrase("Instantiated specification for scenario %1$s", specName);
     }
 
@@ -87,6 +164,174 @@ public class ActivitiSpec {
         return this;
     }
 
+    /**
+     * Establish scenario pre-conditions that are expensive to build.
+     *
+     * <p>
+     * The first time a pre-condition is met the setup action is run and the
+     * resulting database captured. Subsequent scenarios giving the same
+     * pre-condition restore that snapshot instead of running the setup again.
+     * Only H2 databases are supported, see {@link DatabaseSnapshot}.
+     *
+     * @param preCondition
+     *            Natural language definition of scenario pre-conditions, also
+     *            identifying the snapshot.
+     * @param setup
+     *            Action building the pre-conditions, including deploying any
+     *            models they need.
+     * @return The updated specification.
+     * @throws Exception
+     */
+    public ActivitiSpec given(String preCondition, ExternalAction setup)
+            throws Exception {
+        ProcessEngine processEngine = activitiRule.getProcessEngine();
+        DatabaseSnapshot snapshot = DatabaseSnapshot.get(processEngine,
+                preCondition);
+        if (snapshot == null) {
+            setup.execute(this);
+            snapshot = DatabaseSnapshot.capture(processEngine, preCondition);
+            snapshot.setAttachment(new SpecState(this));
+            writeBddPhrase("%1$sGIVEN: %2$s (snapshot taken)",
+                    System.getProperty("line.separator"), preCondition);
+        } else {
+            long start = System.currentTimeMillis();
+            snapshot.restore(processEngine);
+            ((SpecState) snapshot.getAttachment()).applyTo(this);
+            writeBddPhrase("%1$sGIVEN: %2$s (restored in %3$d ms)",
+                    System.getProperty("line.separator"), preCondition,
+                    System.currentTimeMillis() - start);
+        }
+        return this;
+    }
+
+    /**
+     * Measure the delivery latency of mail sent by jobs, from each job
+     * execution step to the arrival of each message at the server.
+     *
+     * @param mailServer
+     * @return The updated specification.
+     * @see TestMailServer#getDeliveryLatencies()
+     */
+    public ActivitiSpec withMailServer(TestMailServer mailServer) {
+        this.mailServer = mailServer;
+        writeBddPhrase("GIVEN: mail captured on port %1$d",
+                mailServer.getPort());
+        return this;
+    }
+
+    /**
+     * After each step print what it changed in the process instance: the
+     * activities started and finished, variables set or removed and the
+     * tasks and jobs created or completed.
+     *
+     * @return The updated specification.
+     * @see ProcessStateTracer
+     */
+    public ActivitiSpec withStateTracing() {
+        stateTracer = new ProcessStateTracer(activitiRule.getProcessEngine());
+        writeBddPhrase("GIVEN: process state traced after each step");
+        return this;
+    }
+
+    /**
+     * Set the engine's history level for the scenario.
+     *
+     * <p>
+     * The level applies to the whole engine from the next engine command.
+     * With an {@link ExtendedRule} the previous level is restored when the
+     * test finishes; with a plain ActivitiRule, whose engine is shared by all
+     * tests using the same configuration, call {@link #restoreHistoryLevel()}
+     * at the end of the scenario.
+     *
+     * @param level
+     * @return The updated specification.
+     * @see #withHistoryFor(HistoryStep...)
+     */
+    public ActivitiSpec withHistoryLevel(HistoryLevel level) {
+        if (activitiRule instanceof ExtendedRule) {
+            ((ExtendedRule) activitiRule).setHistoryLevel(level);
+        } else {
+            if (previousHistoryLevel == null) {
+                previousHistoryLevel = getProcessEngineConfiguration()
+                        .getHistoryLevel();
+            }
+            getProcessEngineConfiguration().setHistoryLevel(level);
+        }
+        writeBddPhrase("GIVEN: history level '%1$s'", level.getKey());
+        return this;
+    }
+
+    /**
+     * Put back the history level the engine had before this scenario set it.
+     *
+     * @return The updated specification.
+     */
+    public ActivitiSpec restoreHistoryLevel() {
+        if (activitiRule instanceof ExtendedRule) {
+            ((ExtendedRule) activitiRule).restoreHistoryLevel();
+        } else if (previousHistoryLevel != null) {
+            getProcessEngineConfiguration().setHistoryLevel(
+                    previousHistoryLevel);
+            previousHistoryLevel = null;
+        }
+        return this;
+    }
+
+    /**
+     * Set the engine's history level to the lowest that supports all of the
+     * specified steps, avoiding history the scenario will never read.
+     *
+     * @param steps
+     *            The steps and extensions the scenario uses that read history.
+     * @return The updated specification.
+     * @see #withHistoryLevel(HistoryLevel)
+     */
+    public ActivitiSpec withHistoryFor(HistoryStep... steps) {
+        HistoryLevel level = HistoryLevel.NONE;
+        for (HistoryStep step : steps) {
+            HistoryLevel required = step.getRequiredLevel();
+            if (required.isAtLeast(level)) {
+                level = required;
+            }
+        }
+        return withHistoryLevel(level);
+    }
+
+    /**
+     * Fail unless the engine records at least the level of history the step
+     * needs.
+     *
+     * @param step
+     */
+    public void requireHistory(HistoryStep step) {
+        requireHistory(step.getRequiredLevel(), step.name());
+    }
+
+    /**
+     * Fail unless the engine records at least the specified level of
+     * history.
+     *
+     * @param required
+     *            Level needed by the step.
+     * @param step
+     *            Name of the step, for the error message.
+     * @see #requireHistory(HistoryStep)
+     */
+    public void requireHistory(HistoryLevel required, String step) {
+        HistoryLevel configured = getProcessEngineConfiguration()
+                .getHistoryLevel();
+        if (!configured.isAtLeast(required)) {
+            throw new IllegalStateException(String.format(
+                    "'%1$s' needs history level '%2$s' but the engine records '%3$s'",
+                    step, required.getKey(), configured.getKey()));
+        }
+    }
+
+    protected ProcessEngineConfigurationImpl getProcessEngineConfiguration() {
+        return (ProcessEngineConfigurationImpl) activitiRule.getProcessEngine()
+                .getProcessEngineConfiguration();
+    }
+
     /**
      * Write a BDD phrase (Given, When or Then ...).
      *
@@ -96,7 +341,72 @@ public class ActivitiSpec {
      * @param phrase
      */
     protected void writeBddPhrase(String phrase) {
+        recordStep(phrase);
         System.out.println(phrase);
+        if (stateTracer != null && processInstance != null) {
+            stateTracer.trace(processInstance.getId(), System.out);
+        }
+        // neither printing nor tracing belong to the next step
+        markStepStart();
+    }
+
+    /**
+     * Note the time taken and commands issued since the previous phrase as
+     * those of the step that wrote this one. Subclasses that override
+     * {@link #writeBddPhrase(String)} without calling it should call this.
+     *
+     * @param phrase
+     */
+    protected void recordStep(String phrase) {
+        // phrases may be written by concurrent extensions
+        synchronized (stepUsage) {
+            lastStepNanos = System.nanoTime() - lastPhraseNanos;
+            lastStep = phrase;
+            recordStepUsage();
+            CommandProfiler profiler = findCommandProfiler();
+            if (profiler == null || profiler != baselineProfiler) {
+                // not profiled for the whole step
+                lastStepCommands = -1;
+            } else {
+                lastStepCommands = profiler.getThreadCommandCount()
+                        - lastPhraseCommands;
+            }
+            markStepStart();
+        }
+    }
+
+    /**
+     * Start measuring the next step from now.
+     */
+    private void markStepStart() {
+        synchronized (stepUsage) {
+            baselineProfiler = findCommandProfiler();
+            lastPhraseCommands = baselineProfiler == null ? 0
+                    : baselineProfiler.getThreadCommandCount();
+            lastPhraseCpuNanos = StepUsage.currentThreadCpuNanos();
+            lastPhraseAllocatedBytes = StepUsage.currentThreadAllocatedBytes();
+            lastPhraseThreadId = Thread.currentThread().getId();
+            lastPhraseNanos = System.nanoTime();
+        }
+    }
+
+    private CommandProfiler findCommandProfiler() {
+        return activitiRule.getProcessEngine() == null ? null
+                : CommandProfiler.find(getProcessEngineConfiguration());
+    }
+
+    /**
+     * Write the phrase of a check on the last step without the check becoming
+     * the last step itself, so that several checks may follow one step.
+     */
+    private void writeBudgetPhrase(String format, Object... args) {
+        String step = lastStep;
+        long nanos = lastStepNanos;
+        long commands = lastStepCommands;
+        writeBddPhrase(format, args);
+        lastStep = step;
+        lastStepNanos = nanos;
+        lastStepCommands = commands;
     }
 
     /**
@@ -132,10 +442,11 @@ public class ActivitiSpec {
         for (Entry<String, Object> entry : putVars.entrySet()) {
             vars.put(entry.getKey(), entry.getValue());
         }
-        processInstance = activitiRule.getRuntimeService()
-                .startProcessInstanceByKey(processDefinitionKey, vars);
+        processInstance = startProcessInstanceByKey(processDefinitionKey,
+                vars, null);
         assertNotNull(processInstance);
         assertNotNull(processInstance.getId());
+        registerProcessInstance();
 
         writeBddPhrase("WHEN: %1$s", eventDescription);
         return this;
@@ -165,16 +476,49 @@ public class ActivitiSpec {
         for (Entry<String, Object> entry : putVars.entrySet()) {
             vars.put(entry.getKey(), entry.getValue());
         }
-        processInstance = activitiRule.getRuntimeService()
-                .startProcessInstanceByKeyAndTenantId(processDefinitionKey,
-                        vars, tenantId);
+        processInstance = startProcessInstanceByKey(processDefinitionKey,
+                vars, tenantId);
         assertNotNull(processInstance);
         assertNotNull(processInstance.getId());
+        registerProcessInstance();
 
         writeBddPhrase("WHEN: %1$s", eventDescription);
         return this;
     }
 
+    /**
+     * Let an {@link ExtendedRule} purge the instance started by this
+     * scenario.
+     */
+    private void registerProcessInstance() {
+        if (activitiRule instanceof ExtendedRule) {
+            ((ExtendedRule) activitiRule).registerProcessInstance(processInstance
+                    .getId());
+        }
+    }
+
+    /**
+     * Start the latest version of the definition, resolving the key only once
+     * per engine rather than on every start.
+     */
+    private ProcessInstance startProcessInstanceByKey(String key,
+            Map<String, Object> vars, String tenantId) {
+        String definitionId = getDefinitionCache().resolveByKey(key, tenantId);
+        if (definitionId == null) {
+            // let the engine report the missing definition as usual
+            return tenantId == null ? activitiRule.getRuntimeService()
+                    .startProcessInstanceByKey(key, vars) : activitiRule
+                    .getRuntimeService().startProcessInstanceByKeyAndTenantId(
+                            key, vars, tenantId);
+        }
+        return activitiRule.getRuntimeService().startProcessInstanceById(
+                definitionId, vars);
+    }
+
+    protected ProcessDefinitionCache getDefinitionCache() {
+        return ProcessDefinitionCache.forEngine(activitiRule.getProcessEngine());
+    }
+
     /**
      * Define the message start event for the business process.
      *
@@ -198,11 +542,19 @@ public class ActivitiSpec {
         vars.put("messageName", adapt(msgName));
         vars.put(adapt(messageName), getJson(messageResource));
 
-        processInstance = activitiRule.getRuntimeService()
-                .startProcessInstanceByMessageAndTenantId(msgName, vars,
-                        tenantId);
+        String definitionId = getDefinitionCache().resolveByMessage(msgName,
+                tenantId);
+        if (definitionId == null) {
+            processInstance = activitiRule.getRuntimeService()
+                    .startProcessInstanceByMessageAndTenantId(msgName, vars,
+                            tenantId);
+        } else {
+            processInstance = activitiRule.getRuntimeService()
+                    .startProcessInstanceById(definitionId, vars);
+        }
         assertNotNull(processInstance);
         assertNotNull(processInstance.getId());
+        registerProcessInstance();
 
         writeBddPhrase("WHEN: %1$s", eventDescription);
         return this;
@@ -275,6 +627,131 @@ public class ActivitiSpec {
         return this;
     }
 
+    /**
+     * Deliver a signal to the one execution of this scenario's process, or
+     * of a sub-process it called, that is waiting for it. Unlike
+     * {@link #whenSignalReceived(String, String, String)} subscriptions of
+     * other process instances are ignored.
+     *
+     * @param eventDescription
+     *            'When' phase of scenario.
+     * @param signalName
+     *            Name of the signal.
+     * @return The updated specification.
+     */
+    public ActivitiSpec whenScopedSignalReceived(String eventDescription,
+            String signalName) {
+        List<Execution> executions = new ArrayList<Execution>();
+        for (String piid : getProcessTree(processInstance.getId())) {
+            executions.addAll(activitiRule.getRuntimeService()
+                    .createExecutionQuery().processInstanceId(piid)
+                    .signalEventSubscriptionName(signalName).list());
+        }
+        assertTrue(String.format(
+                "Expected one execution of process '%1$s' waiting for signal '%2$s' but found %3$d",
+                processInstance.getId(), signalName, executions.size()),
+                executions.size() == 1);
+
+        activitiRule.getRuntimeService().signalEventReceived(signalName,
+                executions.get(0).getId());
+
+        writeBddPhrase("WHEN: %1$s", eventDescription);
+        return this;
+    }
+
+    /**
+     * Broadcast a signal to every subscriber, as a throwing signal event
+     * would, and wait until every woken process instance has reached its next
+     * wait state.
+     *
+     * <p>
+     * The fan-out latency reported is the time from sending the signal until
+     * no woken instance has an executable job left, so includes asynchronous
+     * continuations run by the job executor.
+     *
+     * @param eventDescription
+     *            'When' phase of scenario.
+     * @param signalName
+     *            Name of the signal.
+     * @param tenantId
+     *            Tenant to limit the broadcast to, may be null.
+     * @param timeout
+     *            Maximum milli-seconds to wait for woken instances to settle.
+     * @return The updated specification.
+     */
+    public ActivitiSpec whenSignalBroadcast(String eventDescription,
+            String signalName, String tenantId, int timeout) {
+        ExecutionQuery query = activitiRule.getRuntimeService()
+                .createExecutionQuery().signalEventSubscriptionName(signalName);
+        if (tenantId == null) {
+            // as the broadcast, which only reaches instances of no tenant
+            query.executionWithoutTenantId();
+        } else {
+            query.executionTenantId(tenantId);
+        }
+        Set<String> woken = new HashSet<String>();
+        for (Execution execution : query.list()) {
+            woken.add(execution.getProcessInstanceId());
+        }
+        assertTrue(String.format("No process waiting for signal '%1$s'",
+                signalName), woken.size() > 0);
+
+        long start = System.currentTimeMillis();
+        if (tenantId == null) {
+            activitiRule.getRuntimeService().signalEventReceived(signalName);
+        } else {
+            activitiRule.getRuntimeService().signalEventReceivedWithTenantId(
+                    signalName, tenantId);
+        }
+        long delivered = System.currentTimeMillis() - start;
+        if (hasExecutableJobs(woken)) {
+            // other scenarios' jobs must neither fail nor hold up this one
+            new JobWaiter(activitiRule.getProcessEngine()).waitForJobs(woken,
+                    timeout);
+        }
+        lastFanOutMillis = System.currentTimeMillis() - start;
+
+        writeBddPhrase(
+                "WHEN: %1$s (%2$d processes woken, delivered in %3$d ms, settled in %4$d ms)",
+                eventDescription, woken.size(), delivered, lastFanOutMillis);
+        return this;
+    }
+
+    /**
+     * @return Milli-seconds taken by the last broadcast signal for all woken
+     *         process instances to reach their next wait state.
+     */
+    public long getLastFanOutMillis() {
+        return lastFanOutMillis;
+    }
+
+    private boolean hasExecutableJobs(Set<String> processInstanceIds) {
+        for (Job job : activitiRule.getManagementService().createJobQuery()
+                .executable().list()) {
+            if (processInstanceIds.contains(job.getProcessInstanceId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Ids of the process instance and all the sub-process instances
+     *         below it that are still running.
+     */
+    protected List<String> getProcessTree(String piid) {
+        List<String> tree = new ArrayList<String>();
+        tree.add(piid);
+        for (int i = 0; i < tree.size(); i++) {
+            for (ProcessInstance child : activitiRule.getRuntimeService()
+                    .createProcessInstanceQuery()
+                    .superProcessInstanceId(tree.get(i)).list()) {
+                tree.add(child.getId());
+            }
+        }
+        return tree;
+    }
+
     protected String getJson(String messageResource) {
         InputStream is = null;
         Reader source = null;
@@ -368,6 +845,7 @@ public class ActivitiSpec {
      */
     public ActivitiSpec thenServiceTask(String taskDefinitionKey,
             Set<String> collectVars) {
+        requireHistory(HistoryStep.THEN_SERVICE_TASK);
         List<HistoricTaskInstance> tasks = activitiRule.getHistoryService()
                 .createHistoricTaskInstanceQuery()
                 .taskDefinitionKey(taskDefinitionKey).list();
@@ -464,27 +942,110 @@ public class ActivitiSpec {
             vars.put(entry.getKey(), entry.getValue());
         }
 
+        if (!putVars.isEmpty()) {
+            requireHistory(HistoryStep.WHEN_USER_TASK_COMPLETED);
+        }
         activitiRule.getTaskService().complete(task.getId(), vars, false);
-        for (Entry<String, Object> entry : putVars.entrySet()) {
-            ProcessAssert.assertProcessVariableLatestValueEquals(
-                    processInstance, entry.getKey(), entry.getValue());
+        if (!putVars.isEmpty()) {
+            assertVariablesEqual(putVars);
         }
         writeBddPhrase("WHEN: User Task '%1$s' is completed",
                 taskDefinitionKey);
         return this;
     }
 
+    /**
+     * Verify the latest values of many process variables with a single
+     * history query, failing with every mismatch at once.
+     *
+     * @param expectedVars
+     *            Expected value keyed by variable name.
+     */
+    protected void assertVariablesEqual(Map<String, Object> expectedVars) {
+        Map<String, Object> actualVars = new HashMap<String, Object>();
+        for (HistoricVariableInstance hvi : activitiRule.getHistoryService()
+                .createHistoricVariableInstanceQuery()
+                .processInstanceId(processInstance.getId()).list()) {
+            // prefer process scope over local variables of the same name
+            if (!actualVars.containsKey(hvi.getVariableName())
+                    || (processInstance.getId().equals(hvi.getExecutionId()) && hvi
+                            .getTaskId() == null)) {
+                actualVars.put(hvi.getVariableName(), hvi.getValue());
+            }
+        }
+
+        StringBuilder mismatches = new StringBuilder();
+        int count = 0;
+        for (Entry<String, Object> entry : expectedVars.entrySet()) {
+            Object expected = entry.getValue();
+            Object actual = actualVars.get(entry.getKey());
+            if (!actualVars.containsKey(entry.getKey())) {
+                mismatches.append(String.format(
+                        "%n  %1$s: expected <%2$s> but was not set",
+                        entry.getKey(), expected));
+                count++;
+            } else if (expected == null ? actual != null : !expected
+                    .equals(actual)) {
+                mismatches.append(String.format(
+                        "%n  %1$s: expected <%2$s> but was <%3$s>",
+                        entry.getKey(), expected, actual));
+                count++;
+            }
+        }
+        if (count > 0) {
+            throw new AssertionError(String.format(
+                    "%1$d of %2$d variables of process '%3$s' do not hold the expected value:%4$s",
+                    count, expectedVars.size(), processInstance.getId(),
+                    mismatches));
+        }
+    }
+
     public ActivitiSpec thenVariableEquals(String varName, Object varExpectedVal)
             throws Exception {
-        Object varActualVal = activitiRule.getRuntimeService().getVariable(
-                processInstance.getId(),
-                varName);
+        Object varActualVal = null;
+        try {
+            varActualVal = activitiRule.getRuntimeService().getVariable(
+                    processInstance.getId(), varName);
+        } catch (ActivitiObjectNotFoundException e) {
+            // assume process ended, try history
+            requireHistory(HistoryStep.THEN_VARIABLE_EQUALS);
+            varActualVal = getHistoricVariable(varName);
+        }
         assertEquals(varExpectedVal, varActualVal);
 
         writeBddPhrase("THEN: variable '%1$s' has the expected value", varName);
         return this;
     }
 
+    /**
+     * @return The value of the variable in history, preferring that of the
+     *         process instance itself over those of its child executions and
+     *         tasks.
+     * @throws AssertionError
+     *             If only child scopes hold the variable and their values
+     *             differ.
+     */
+    private Object getHistoricVariable(String varName) {
+        List<HistoricVariableInstance> list = activitiRule.getHistoryService()
+                .createHistoricVariableInstanceQuery()
+                .processInstanceId(processInstance.getId())
+                .variableName(varName).list();
+        Set<Object> values = new HashSet<Object>();
+        for (HistoricVariableInstance hvi : list) {
+            if (processInstance.getId().equals(hvi.getExecutionId())
+                    && hvi.getTaskId() == null) {
+                return hvi.getValue();
+            }
+            values.add(hvi.getValue());
+        }
+        if (values.size() > 1) {
+            throw new AssertionError(String.format(
+                    "Variable '%1$s' of process '%2$s' is not set on the process instance and %3$d child scopes hold different values: %4$s",
+                    varName, processInstance.getId(), list.size(), values));
+        }
+        return values.isEmpty() ? null : values.iterator().next();
+    }
+
     /**
      * Execute an extension action for the scenario.
      *
@@ -497,12 +1058,229 @@ public class ActivitiSpec {
      * @throws Exception
      */
     public ActivitiSpec thenExtension(ExternalAction action) throws Exception {
+        long start = System.currentTimeMillis();
         action.execute(this);
+        recordExtensionDuration(action, System.currentTimeMillis() - start);
         writeBddPhrase("THEN: extension '%1$s' is run", action.getClass()
                 .getName());
         return this;
     }
 
+    /**
+     * Execute several independent extension actions concurrently.
+     *
+     * <p>
+     * All actions are run to completion, any failures are then reported
+     * together.
+     *
+     * @param actions
+     *            Actions that do not depend on one another.
+     * @return The updated specification.
+     * @throws Exception
+     * @see #thenExtension(ExternalAction)
+     */
+    public ActivitiSpec thenExtensions(ExternalAction... actions)
+            throws Exception {
+        if (actions.length == 0) {
+            return this;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(actions.length);
+        try {
+            return thenExtensions(executor, actions);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Execute several independent extension actions concurrently using the
+     * supplied executor.
+     *
+     * @param executor
+     *            Executor to run the actions, remains open.
+     * @param actions
+     *            Actions that do not depend on one another.
+     * @return The updated specification.
+     * @throws Exception
+     * @see #thenExtensions(ExternalAction...)
+     */
+    public ActivitiSpec thenExtensions(ExecutorService executor,
+            ExternalAction... actions) throws Exception {
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (final ExternalAction action : actions) {
+            futures.add(executor.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    long start = System.currentTimeMillis();
+                    action.execute(ActivitiSpec.this);
+                    return System.currentTimeMillis() - start;
+                }
+            }));
+        }
+
+        List<Throwable> failures = new ArrayList<Throwable>();
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < actions.length; i++) {
+            String actionName = actions[i].getClass().getName();
+            try {
+                recordExtensionDuration(actions[i], futures.get(i).get());
+                writeBddPhrase("THEN: extension '%1$s' is run", actionName);
+            } catch (ExecutionException e) {
+                failures.add(e.getCause());
+                msg.append(String.format("%n  %1$s: %2$s", actionName, e
+                        .getCause().getMessage()));
+            }
+        }
+        if (failures.size() > 0) {
+            AssertionError error = new AssertionError(String.format(
+                    "%1$d of %2$d extensions failed:%3$s", failures.size(),
+                    actions.length, msg));
+            error.initCause(failures.get(0));
+            throw error;
+        }
+        return this;
+    }
+
+    private void recordExtensionDuration(ExternalAction action, long millis) {
+        String name = action.getClass().getName();
+        synchronized (extensionDurations) {
+            String key = name;
+            for (int i = 2; extensionDurations.containsKey(key); i++) {
+                key = name + "[" + i + "]";
+            }
+            extensionDurations.put(key, millis);
+        }
+    }
+
+    /**
+     * @return Milli-seconds taken by each extension action run so far, keyed
+     *         by class name (suffixed with a counter if run more than once)
+     *         in the order they were run.
+     */
+    public Map<String, Long> getExtensionDurations() {
+        synchronized (extensionDurations) {
+            return new LinkedHashMap<String, Long>(extensionDurations);
+        }
+    }
+
+    /**
+     * Capture the state of the engine and the specification so that several
+     * scenarios sharing the steps so far can each continue from here.
+     *
+     * <p>
+     * Like {@link #given(String, ExternalAction)} this is only supported on H2
+     * and the models in use must have been deployed before the checkpoint,
+     * not by a later <code>&#064;Deployment</code>.
+     *
+     * @param checkpointName
+     *            Identifies the checkpoint across the test suite.
+     * @return The updated specification.
+     * @throws SQLException
+     * @see #fork(String, String)
+     */
+    public ActivitiSpec checkpoint(String checkpointName) throws SQLException {
+        DatabaseSnapshot snapshot = DatabaseSnapshot.capture(
+                activitiRule.getProcessEngine(), checkpointKey(checkpointName));
+        snapshot.setAttachment(new SpecState(this));
+        writeBddPhrase("CHECKPOINT: %1$s", checkpointName);
+        return this;
+    }
+
+    /**
+     * @return true if the named checkpoint has been taken, allowing the steps
+     *         leading to it to be skipped.
+     */
+    public boolean hasCheckpoint(String checkpointName) {
+        return DatabaseSnapshot.get(activitiRule.getProcessEngine(),
+                checkpointKey(checkpointName)) != null;
+    }
+
+    /**
+     * Restore a checkpoint and continue from it as a new scenario.
+     *
+     * <p>
+     * Forks share one database, so they must be run one after another; each
+     * fork discards any changes made by the previous one.
+     *
+     * @param checkpointName
+     *            Checkpoint taken earlier in this or another scenario.
+     * @param branchName
+     *            Distinguishes the new scenario.
+     * @return A specification in the state this or another specification was
+     *         in when the checkpoint was taken.
+     * @throws SQLException
+     */
+    public ActivitiSpec fork(String checkpointName, String branchName)
+            throws SQLException {
+        DatabaseSnapshot snapshot = DatabaseSnapshot.get(
+                activitiRule.getProcessEngine(), checkpointKey(checkpointName));
+        if (snapshot == null) {
+            throw new IllegalStateException(String.format(
+                    "No checkpoint named '%1$s' has been taken",
+                    checkpointName));
+        }
+        long start = System.currentTimeMillis();
+        snapshot.restore(activitiRule.getProcessEngine());
+        ActivitiSpec fork = createFork(specName + "/" + branchName);
+        ((SpecState) snapshot.getAttachment()).applyTo(fork);
+        fork.writeBddPhrase("FORK: from %1$s (restored in %2$d ms)",
+                checkpointName, System.currentTimeMillis() - start);
+        return fork;
+    }
+
+    /**
+     * Run each branch in turn from the named checkpoint.
+     *
+     * <p>
+     * Every branch is run, any failures are then reported together. The
+     * engine is left in the state of the last branch.
+     *
+     * @param checkpointName
+     *            Checkpoint taken earlier in this or another scenario.
+     * @param branches
+     *            Steps to apply to each fork, keyed by branch name.
+     * @return This specification.
+     * @throws Exception
+     */
+    public ActivitiSpec forEachBranch(String checkpointName,
+            Map<String, ExternalAction> branches) throws Exception {
+        List<Throwable> failures = new ArrayList<Throwable>();
+        StringBuilder msg = new StringBuilder();
+        for (Entry<String, ExternalAction> branch : branches.entrySet()) {
+            try {
+                branch.getValue().execute(
+                        fork(checkpointName, branch.getKey()));
+            } catch (Exception e) {
+                failures.add(e);
+                msg.append(String.format("%n  %1$s: %2$s", branch.getKey(),
+                        e.getMessage()));
+            } catch (AssertionError e) {
+                failures.add(e);
+                msg.append(String.format("%n  %1$s: %2$s", branch.getKey(),
+                        e.getMessage()));
+            }
+        }
+        if (failures.size() > 0) {
+            AssertionError error = new AssertionError(String.format(
+                    "%1$d of %2$d branches failed:%3$s", failures.size(),
+                    branches.size(), msg));
+            error.initCause(failures.get(0));
+            throw error;
+        }
+        return this;
+    }
+
+    /**
+     * Create the specification for a fork, subclasses should override to
+     * return their own type.
+     */
+    protected ActivitiSpec createFork(String name) {
+        return new ActivitiSpec(activitiRule, name);
+    }
+
+    private String checkpointKey(String checkpointName) {
+        return "checkpoint:" + checkpointName;
+    }
+
     /**
      * A scenario event allowing the process engine to execute for the specified
      * period.
@@ -512,6 +1290,7 @@ public class ActivitiSpec {
      * @return The updated specification.
      */
     public ActivitiSpec whenExecuteJobsForTime(int maxMillisToWait) {
+        markJobExecutionStart();
         JobTestHelper.executeJobExecutorForTime(activitiRule, maxMillisToWait, 1);
 
         List<Job> jobs = activitiRule.getManagementService().createJobQuery()
@@ -523,21 +1302,26 @@ public class ActivitiSpec {
     }
 
     /**
-     * A scenario event allowing the process engine to execute for the specified
-     * period.
+     * A scenario event allowing the process engine to execute all jobs. Fails
+     * as soon as any job throws an exception.
      *
      * @param timeout
      *            Maximum milli-seconds to allow the engine to execute.
      * @return The updated specification.
      */
     public ActivitiSpec whenExecuteAllJobs(int timeout) {
-        JobTestHelper.waitForJobExecutorToProcessAllJobs(activitiRule
-                .getProcessEngine().getProcessEngineConfiguration(),
-                activitiRule.getManagementService(), timeout, 1);
+        markJobExecutionStart();
+        new JobWaiter(activitiRule.getProcessEngine()).waitForAllJobs(timeout);
         writeBddPhrase("WHEN: executed all jobs");
         return this;
     }
 
+    private void markJobExecutionStart() {
+        if (mailServer != null) {
+            mailServer.markJobExecutionStart();
+        }
+    }
+
     /**
      * Advances process engine by the specified amount of time.
      *
@@ -574,6 +1358,7 @@ public class ActivitiSpec {
             throw new IllegalArgumentException("Parameter subProcId must not be null");
         }
 
+        requireHistory(HistoryStep.THEN_SUB_PROCESS_CALLED);
         boolean found = searchForSubProc(subProcDefKey, processInstance.getId());
 
         assertTrue(String.format("No call made to %1$s", subProcDefKey), found);
@@ -595,6 +1380,7 @@ public class ActivitiSpec {
             throw new IllegalArgumentException("Parameter subProcKey must not be null");
         }
 
+        requireHistory(HistoryStep.THEN_SUB_PROCESS_CALLED);
         boolean found = searchForSubProc(subProcDefKey, callActivityId, processInstance.getId());
 
         assertTrue(String.format("No call made to %1$s", subProcDefKey), found);
@@ -653,6 +1439,195 @@ public class ActivitiSpec {
         return this;
     }
 
+    /**
+     * Call holding the lock on stepUsage, which also guards the baselines.
+     */
+    private void recordStepUsage() {
+        long cpu = StepUsage.currentThreadCpuNanos();
+        long allocated = StepUsage.currentThreadAllocatedBytes();
+        // counters are per thread, so a step on another thread is unknown
+        boolean sameThread = Thread.currentThread().getId() == lastPhraseThreadId;
+        String stepType = getStepType();
+        StepUsage usage = stepUsage.get(stepType);
+        if (usage == null) {
+            usage = new StepUsage();
+            stepUsage.put(stepType, usage);
+        }
+        usage.add(lastStepNanos,
+                sameThread && cpu >= 0 && lastPhraseCpuNanos >= 0 ? cpu
+                        - lastPhraseCpuNanos : -1, sameThread && allocated >= 0
+                        && lastPhraseAllocatedBytes >= 0 ? allocated
+                        - lastPhraseAllocatedBytes : -1);
+    }
+
+    /**
+     * @return Name of the innermost public step method of this class (or a
+     *         subclass) on the stack, so that steps composed of other steps,
+     *         or run by one, are charged with only their own phrases.
+     */
+    private String getStepType() {
+        if (stepMethods == null) {
+            Set<String> names = new HashSet<String>();
+            for (Method method : getClass().getMethods()) {
+                if (ActivitiSpec.class.isAssignableFrom(method
+                        .getDeclaringClass())) {
+                    names.add(method.getName());
+                }
+            }
+            stepMethods = names;
+        }
+        for (StackTraceElement frame : Thread.currentThread().getStackTrace()) {
+            String method = frame.getMethodName();
+            if (isSpecClass(frame.getClassName())
+                    && stepMethods.contains(method)
+                    && !"writeBddPhrase".equals(method)) {
+                return method;
+            }
+        }
+        return "<init>";
+    }
+
+    private boolean isSpecClass(String className) {
+        for (Class<?> c = getClass(); c != null
+                && c != Object.class; c = c.getSuperclass()) {
+            if (c.getName().equals(className)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return Resources used by the test thread, keyed by step type (the
+     *         name of the step method).
+     */
+    public Map<String, StepUsage> getStepUsage() {
+        synchronized (stepUsage) {
+            return Collections.unmodifiableMap(new LinkedHashMap<String, StepUsage>(
+                    stepUsage));
+        }
+    }
+
+    /**
+     * Write the resources used by each type of step and by the scenario as a
+     * whole.
+     *
+     * @param out
+     */
+    public void writeStepUsage(PrintStream out) {
+        out.println(String.format(
+                "*********** Step usage for scenario %1$s ***********",
+                specName));
+        StepUsage total = new StepUsage();
+        for (Entry<String, StepUsage> entry : getStepUsage().entrySet()) {
+            out.println(String.format("  %1$s: %2$s", entry.getKey(),
+                    entry.getValue()));
+            total.add(entry.getValue());
+        }
+        out.println(String.format("  TOTAL: %1$s", total));
+    }
+
+    /**
+     * Verify that the process completed within a budget of engine time.
+     *
+     * @param maxMillis
+     *            Longest acceptable duration of the process instance.
+     * @return The updated specification.
+     */
+    public ActivitiSpec thenCompletedWithin(long maxMillis) {
+        requireHistory(HistoryStep.THEN_COMPLETED_WITHIN);
+        HistoricProcessInstance hpi = activitiRule.getHistoryService()
+                .createHistoricProcessInstanceQuery()
+                .processInstanceId(processInstance.getId()).singleResult();
+        assertNotNull(hpi);
+        assertNotNull("Process is not complete", hpi.getEndTime());
+        assertTrue(String.format(
+                "Process took %1$d ms, more than the budget of %2$d ms",
+                hpi.getDurationInMillis(), maxMillis),
+                hpi.getDurationInMillis() <= maxMillis);
+        writeBddPhrase("THEN: The process completed in %1$d ms (budget %2$d ms)",
+                hpi.getDurationInMillis(), maxMillis);
+        return this;
+    }
+
+    /**
+     * Verify that every execution of a sub-process or call activity completed
+     * within a budget of engine time.
+     *
+     * @param activityId
+     *            BPMN id of the sub-process or call activity.
+     * @param maxMillis
+     *            Longest acceptable duration of each execution.
+     * @return The updated specification.
+     */
+    public ActivitiSpec thenSubProcessCompletedWithin(String activityId,
+            long maxMillis) {
+        requireHistory(HistoryStep.THEN_SUB_PROCESS_COMPLETED_WITHIN);
+        List<HistoricActivityInstance> activities = activitiRule
+                .getHistoryService().createHistoricActivityInstanceQuery()
+                .processInstanceId(processInstance.getId())
+                .activityId(activityId).list();
+        assertTrue(String.format("Sub-process %1$s was not executed",
+                activityId), activities.size() > 0);
+        long slowest = 0;
+        for (HistoricActivityInstance hai : activities) {
+            assertNotNull(String.format("Sub-process %1$s is not complete",
+                    activityId), hai.getEndTime());
+            slowest = Math.max(slowest, hai.getDurationInMillis());
+        }
+        assertTrue(String.format(
+                "Sub-process %1$s took %2$d ms, more than the budget of %3$d ms",
+                activityId, slowest, maxMillis), slowest <= maxMillis);
+        writeBddPhrase(
+                "THEN: The sub-process %1$s completed in %2$d ms (budget %3$d ms)",
+                activityId, slowest, maxMillis);
+        return this;
+    }
+
+    /**
+     * Verify that the previous step took less than the specified wall-clock
+     * time, measured from the phrase before it. Other checks of the previous
+     * step may follow.
+     *
+     * @param maxMillis
+     * @return The updated specification.
+     */
+    public ActivitiSpec thenStepLatencyBelow(long maxMillis) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(lastStepNanos);
+        String step = lastStep;
+        assertTrue(String.format(
+                "Step '%1$s' took %2$d ms, more than the budget of %3$d ms",
+                step, millis, maxMillis), millis < maxMillis);
+        writeBudgetPhrase("THEN: The step '%1$s' took %2$d ms (budget %3$d ms)",
+                step.trim(), millis, maxMillis);
+        return this;
+    }
+
+    /**
+     * Verify that the previous step issued fewer than the specified number of
+     * engine commands (queries, service calls) from the test thread. Needs a
+     * {@link CommandProfiler} to be installed before the step. May follow
+     * {@link #thenStepLatencyBelow(long)}, both check the same step.
+     *
+     * @param maxCommands
+     * @return The updated specification.
+     */
+    public ActivitiSpec thenStepCommandsBelow(long maxCommands) {
+        if (lastStepCommands < 0) {
+            throw new IllegalStateException(
+                    "'thenStepCommandsBelow' needs a CommandProfiler installed on the engine before the step");
+        }
+        long commands = lastStepCommands;
+        String step = lastStep;
+        assertTrue(String.format(
+                "Step '%1$s' issued %2$d commands, more than the budget of %3$d",
+                step, commands, maxCommands), commands < maxCommands);
+        writeBudgetPhrase(
+                "THEN: The step '%1$s' issued %2$d commands (budget %3$d)",
+                step.trim(), commands, maxCommands);
+        return this;
+    }
+
     /**
      * Verify that the outcome of the scenario is that the process completed in
      * the all the BPMN event ids.
@@ -661,6 +1636,7 @@ public class ActivitiSpec {
      * @return The updated specification.
      */
     public ActivitiSpec thenProcessEndedAndInEndEvents(String... endEventIds) {
+        requireHistory(HistoryStep.THEN_PROCESS_ENDED_AND_IN_END_EVENTS);
         ProcessAssert.assertProcessEndedAndInEndEvents(processInstance,
                 endEventIds);
         writeBddPhrase(
@@ -677,6 +1653,8 @@ public class ActivitiSpec {
      * @return The updated specification.
      */
     public ActivitiSpec thenProcessEndedAndInExclusiveEndEvent(String endEventId) {
+        requireHistory(
+                HistoryStep.THEN_PROCESS_ENDED_AND_IN_EXCLUSIVE_END_EVENT);
         // ProcessInstance processInstance2 = activitiRule.getProcessEngine()
         // .getRuntimeService().createProcessInstanceQuery()
         // .processInstanceId(processInstance.getId()).singleResult();
@@ -697,6 +1675,7 @@ public class ActivitiSpec {
 
 
     public ActivitiSpec thenTimerExpired(String timerEventId) {
+        requireHistory(HistoryStep.THEN_TIMER_EXPIRED);
         List<HistoricActivityInstance> activities = activitiRule
                 .getHistoryService().createHistoricActivityInstanceQuery()
                 .activityId(timerEventId).list();
@@ -706,6 +1685,7 @@ public class ActivitiSpec {
     }
 
     public ActivitiSpec thenEventOccurred(String eventId) {
+        requireHistory(HistoryStep.THEN_EVENT_OCCURRED);
         List<HistoricActivityInstance> activities = activitiRule
                 .getHistoryService().createHistoricActivityInstanceQuery()
                 .activityId(eventId).list();
@@ -728,6 +1708,104 @@ public class ActivitiSpec {
         return this;
     }
 
+    /**
+     * Verify that all the users and groups exist, using one query for the
+     * users and one for the groups however many there are.
+     *
+     * <p>
+     * The queries are native SQL over the engine's own ACT_ID_USER and
+     * ACT_ID_GROUP tables, so they bypass any custom identity manager (LDAP
+     * for example). Use {@link #thenUserExists(String, String...)}, which
+     * goes through the identity service, for such engines.
+     *
+     * @param userIds
+     * @param groupIds
+     * @return The updated specification.
+     */
+    public ActivitiSpec thenUsersExist(Collection<String> userIds,
+            String... groupIds) {
+        assertIdentitiesExist(userIds, groupIds);
+        writeBddPhrase("THEN: The %1$d users and %2$d groups exist",
+                userIds.size(), groupIds.length);
+        return this;
+    }
+
+    private void assertIdentitiesExist(Collection<String> userIds,
+            String... groupIds) {
+        Set<String> missingUsers = new TreeSet<String>(userIds);
+        List<String> ids = new ArrayList<String>(missingUsers);
+        for (int i = 0; i < ids.size(); i += IN_CLAUSE_SIZE) {
+            List<String> chunk = ids.subList(i,
+                    Math.min(i + IN_CLAUSE_SIZE, ids.size()));
+            NativeUserQuery query = activitiRule.getIdentityService()
+                    .createNativeUserQuery();
+            query.sql(inClauseSql(UserEntity.class, chunk.size()));
+            for (int j = 0; j < chunk.size(); j++) {
+                query.parameter("id" + j, chunk.get(j));
+            }
+            for (User user : query.list()) {
+                missingUsers.remove(user.getId());
+            }
+        }
+        Set<String> missingGroups = new TreeSet<String>(
+                Arrays.asList(groupIds));
+        ids = new ArrayList<String>(missingGroups);
+        for (int i = 0; i < ids.size(); i += IN_CLAUSE_SIZE) {
+            List<String> chunk = ids.subList(i,
+                    Math.min(i + IN_CLAUSE_SIZE, ids.size()));
+            NativeGroupQuery query = activitiRule.getIdentityService()
+                    .createNativeGroupQuery();
+            query.sql(inClauseSql(GroupEntity.class, chunk.size()));
+            for (int j = 0; j < chunk.size(); j++) {
+                query.parameter("id" + j, chunk.get(j));
+            }
+            for (Group group : query.list()) {
+                missingGroups.remove(group.getId());
+            }
+        }
+        assertTrue(String.format("Missing users %1$s and groups %2$s",
+                missingUsers, missingGroups), missingUsers.isEmpty()
+                && missingGroups.isEmpty());
+    }
+
+    /**
+     * @return SQL selecting the rows of the entity's table whose id is one of
+     *         the parameters id0, id1 ...
+     */
+    private String inClauseSql(Class<?> entityClass, int size) {
+        StringBuilder sql = new StringBuilder("SELECT * FROM ")
+                .append(activitiRule.getManagementService().getTableName(
+                        entityClass)).append(" WHERE ID_ IN (");
+        for (int i = 0; i < size; i++) {
+            sql.append(i == 0 ? "" : ", ").append("#{id").append(i)
+                    .append("}");
+        }
+        return sql.append(")").toString();
+    }
+
+    /**
+     * Set up users, groups and memberships from a fixture resource, see
+     * {@link IdentityFixtureLoader} for the format.
+     *
+     * @param resource
+     *            Classpath resource name.
+     * @return The updated specification.
+     */
+    public ActivitiSpec givenIdentities(String resource) throws IOException {
+        long start = System.currentTimeMillis();
+        IdentityFixtureLoader loader = new IdentityFixtureLoader(
+                activitiRule.getProcessEngine()).read(resource);
+        int users = loader.getUserCount();
+        int groups = loader.getGroupCount();
+        int memberships = loader.getMembershipCount();
+        loader.load();
+        writeBddPhrase(
+                "GIVEN: identities from %1$s (%2$d users, %3$d groups, %4$d memberships loaded in %5$d ms)",
+                resource, users, groups, memberships,
+                System.currentTimeMillis() - start);
+        return this;
+    }
+
     public ActivitiSpec thenUserAuthenticated(String userId, String newPwd) {
         activitiRule.getIdentityService().checkPassword(userId, newPwd);
         return this;
@@ -745,6 +1823,7 @@ public class ActivitiSpec {
                 processInstance.getId(), varName);
         } catch (ActivitiObjectNotFoundException e) {
             // assume process ended, try history
+            requireHistory(HistoryStep.COLLECT_VAR);
             var = activitiRule.getHistoryService()
                     .createHistoricVariableInstanceQuery()
                     .processInstanceId(processInstance.getId())
@@ -805,5 +1884,28 @@ public class ActivitiSpec {
         return emptySet;
     }
 
+    /**
+     * Specification state that lives outside the database.
+     */
+    private static class SpecState {
+        private final ProcessInstance processInstance;
+        private final String messageName;
+        private final String processDefinitionKey;
+        private final Map<String, Object> collectVars;
+
+        SpecState(ActivitiSpec spec) {
+            this.processInstance = spec.processInstance;
+            this.messageName = spec.messageName;
+            this.processDefinitionKey = spec.processDefinitionKey;
+            this.collectVars = new HashMap<String, Object>(spec.collectVars);
+        }
 
+        void applyTo(ActivitiSpec spec) {
+            spec.processInstance = processInstance;
+            spec.messageName = messageName;
+            spec.processDefinitionKey = processDefinitionKey;
+            spec.collectVars.clear();
+            spec.collectVars.putAll(collectVars);
+        }
+    }
 }
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd;
+
+import org.activiti.engine.impl.history.HistoryLevel;
+
+/**
+ * Steps that read history, each with the minimum history level it needs.
+ *
+ * <p>
+ * The steps check their own constant, so the level reported here is always
+ * the one enforced.
+ *
+ * @author Tim Stephenson
+ * @see ActivitiSpec#withHistoryFor(HistoryStep...)
+ */
+public enum HistoryStep {
+
+    THEN_SERVICE_TASK(HistoryLevel.AUDIT),
+    THEN_SCRIPT_TASK(HistoryLevel.AUDIT),
+    THEN_USER_TASK(HistoryLevel.ACTIVITY),
+    WHEN_USER_TASK_COMPLETED(HistoryLevel.ACTIVITY),
+    THEN_VARIABLE_EQUALS(HistoryLevel.ACTIVITY),
+    COLLECT_VAR(HistoryLevel.ACTIVITY),
+    THEN_SUB_PROCESS_CALLED(HistoryLevel.ACTIVITY),
+    THEN_PROCESS_ENDED_AND_IN_END_EVENTS(HistoryLevel.ACTIVITY),
+    THEN_PROCESS_ENDED_AND_IN_EXCLUSIVE_END_EVENT(HistoryLevel.ACTIVITY),
+    THEN_TIMER_EXPIRED(HistoryLevel.ACTIVITY),
+    THEN_EVENT_OCCURRED(HistoryLevel.ACTIVITY),
+    THEN_COMPLETED_WITHIN(HistoryLevel.ACTIVITY),
+    THEN_SUB_PROCESS_COMPLETED_WITHIN(HistoryLevel.ACTIVITY),
+    /** The {@link org.activiti.bdd.ext.DumpAuditTrail} extension. */
+    DUMP_AUDIT_TRAIL(HistoryLevel.FULL);
+
+    private final HistoryLevel requiredLevel;
+
+    private HistoryStep(HistoryLevel requiredLevel) {
+        this.requiredLevel = requiredLevel;
+    }
+
+    /**
+     * @return The minimum history level the step needs.
+     */
+    public HistoryLevel getRequiredLevel() {
+        return requiredLevel;
+    }
+}
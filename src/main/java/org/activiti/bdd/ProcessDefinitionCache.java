@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd;
+
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.activiti.bpmn.model.BpmnModel;
+import org.activiti.bpmn.model.Process;
+import org.activiti.bpmn.model.StartEvent;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.RepositoryService;
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.cfg.TransactionListener;
+import org.activiti.engine.impl.cfg.TransactionState;
+import org.activiti.engine.impl.context.Context;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.repository.Deployment;
+import org.activiti.engine.repository.ProcessDefinition;
+import org.activiti.engine.repository.ProcessDefinitionQuery;
+
+/**
+ * Remembers which process definition a key or start message resolves to so
+ * that repeated starts can go straight to the definition by id.
+ *
+ * <p>
+ * One cache is kept per engine. It is cleared whenever a transaction that
+ * created or deleted a deployment or process definition commits, and a
+ * resolution that overlaps such a commit is not cached.
+ *
+ * @author Tim Stephenson
+ */
+public class ProcessDefinitionCache {
+
+    /** Marks a message whose definition may not be started by id. */
+    private static final String START_BY_MESSAGE = "";
+
+    private static final Map<ProcessEngine, ProcessDefinitionCache> caches = new WeakHashMap<ProcessEngine, ProcessDefinitionCache>();
+
+    private final RepositoryService repositoryService;
+
+    private final Map<String, String> byKey = new ConcurrentHashMap<String, String>();
+
+    private final Map<String, String> byMessage = new ConcurrentHashMap<String, String>();
+
+    /** Incremented by each invalidation. */
+    private long generation;
+
+    protected ProcessDefinitionCache(ProcessEngine processEngine) {
+        this.repositoryService = processEngine.getRepositoryService();
+        processEngine.getRuntimeService().addEventListener(
+                new ActivitiEventListener() {
+                    public void onEvent(ActivitiEvent event) {
+                        Object entity = ((ActivitiEntityEvent) event)
+                                .getEntity();
+                        if (entity instanceof Deployment
+                                || entity instanceof ProcessDefinition) {
+                            invalidateOnCommit();
+                        }
+                    }
+
+                    public boolean isFailOnException() {
+                        return false;
+                    }
+                }, ActivitiEventType.ENTITY_CREATED,
+                ActivitiEventType.ENTITY_DELETED);
+    }
+
+    /**
+     * @return The cache for the specified engine, created on first use.
+     */
+    public static ProcessDefinitionCache forEngine(ProcessEngine processEngine) {
+        synchronized (caches) {
+            ProcessDefinitionCache cache = caches.get(processEngine);
+            if (cache == null) {
+                cache = new ProcessDefinitionCache(processEngine);
+                caches.put(processEngine, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * Forget all resolved definitions.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        byKey.clear();
+        byMessage.clear();
+    }
+
+    /**
+     * Invalidate once the current transaction commits, until when other
+     * threads still see, and might cache, the definitions it is replacing.
+     */
+    private void invalidateOnCommit() {
+        CommandContext commandContext = Context.getCommandContext();
+        if (commandContext == null) {
+            invalidate();
+            return;
+        }
+        commandContext.getTransactionContext().addTransactionListener(
+                TransactionState.COMMITTED, new TransactionListener() {
+                    public void execute(CommandContext commandContext) {
+                        invalidate();
+                    }
+                });
+    }
+
+    private synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Cache a resolution unless the cache was invalidated since it began.
+     */
+    private synchronized void put(Map<String, String> cache, String cacheKey,
+            String id, long resolvedGeneration) {
+        if (generation == resolvedGeneration) {
+            cache.put(cacheKey, id);
+        }
+    }
+
+    /**
+     * @param key
+     *            Process definition key.
+     * @param tenantId
+     *            Process tenant, may be null.
+     * @return Id of the latest version of the definition or null if there is
+     *         none.
+     */
+    public String resolveByKey(String key, String tenantId) {
+        String cacheKey = cacheKey(key, tenantId);
+        String id = byKey.get(cacheKey);
+        if (id == null) {
+            long resolvedGeneration = getGeneration();
+            ProcessDefinition definition = withTenant(
+                    repositoryService.createProcessDefinitionQuery()
+                            .processDefinitionKey(key), tenantId)
+                    .latestVersion().singleResult();
+            if (definition == null) {
+                return null;
+            }
+            id = definition.getId();
+            put(byKey, cacheKey, id, resolvedGeneration);
+        }
+        return id;
+    }
+
+    /**
+     * @param messageName
+     *            Name of a message start event.
+     * @param tenantId
+     *            Process tenant, may be null.
+     * @return Id of the definition started by the message or null if there is
+     *         none or if it has other start events, in which case the message
+     *         itself must be used to select the right one.
+     */
+    public String resolveByMessage(String messageName, String tenantId) {
+        String cacheKey = cacheKey(messageName, tenantId);
+        String id = byMessage.get(cacheKey);
+        if (id == null) {
+            long resolvedGeneration = getGeneration();
+            ProcessDefinition definition = withTenant(
+                    repositoryService.createProcessDefinitionQuery()
+                            .messageEventSubscriptionName(messageName),
+                    tenantId).singleResult();
+            if (definition == null) {
+                return null;
+            }
+            id = hasSingleStartEvent(definition) ? definition.getId()
+                    : START_BY_MESSAGE;
+            put(byMessage, cacheKey, id, resolvedGeneration);
+        }
+        return START_BY_MESSAGE.equals(id) ? null : id;
+    }
+
+    private boolean hasSingleStartEvent(ProcessDefinition definition) {
+        BpmnModel model = repositoryService.getBpmnModel(definition.getId());
+        Process process = model.getProcessById(definition.getKey());
+        if (process == null) {
+            return false;
+        }
+        List<StartEvent> startEvents = process
+                .findFlowElementsOfType(StartEvent.class);
+        return startEvents.size() == 1;
+    }
+
+    private ProcessDefinitionQuery withTenant(ProcessDefinitionQuery query,
+            String tenantId) {
+        return tenantId == null ? query.processDefinitionWithoutTenantId()
+                : query.processDefinitionTenantId(tenantId);
+    }
+
+    private String cacheKey(String name, String tenantId) {
+        return tenantId == null ? name : name + '\u0000' + tenantId;
+    }
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Resources used by the test thread in one or more specification steps:
+ * wall-clock time, CPU time and bytes allocated.
+ *
+ * <p>
+ * CPU time needs JVM support for thread CPU time measurement and allocation
+ * needs a HotSpot based JVM, where either is unavailable it reads as -1.
+ * Samples that could not be measured, for example of a step that finished
+ * on a different thread than it started, are left out of those totals
+ * rather than making them unknown.
+ *
+ * @author Tim Stephenson
+ */
+public class StepUsage {
+
+    private static final ThreadMXBean threadBean = ManagementFactory
+            .getThreadMXBean();
+
+    private int count;
+
+    private long wallNanos;
+
+    /** Sum of known samples or -1 if none. */
+    private long cpuNanos = -1;
+
+    /** Sum of known samples or -1 if none. */
+    private long allocatedBytes = -1;
+
+    /**
+     * Add the usage of one step.
+     *
+     * @param cpuNanos
+     *            CPU time or -1 if unknown.
+     * @param allocatedBytes
+     *            Bytes allocated or -1 if unknown.
+     */
+    public void add(long wallNanos, long cpuNanos, long allocatedBytes) {
+        add(1, wallNanos, cpuNanos, allocatedBytes);
+    }
+
+    /**
+     * Add the usage of other steps.
+     */
+    public void add(StepUsage other) {
+        int otherCount;
+        long otherWall, otherCpu, otherAllocated;
+        synchronized (other) {
+            otherCount = other.count;
+            otherWall = other.wallNanos;
+            otherCpu = other.cpuNanos;
+            otherAllocated = other.allocatedBytes;
+        }
+        add(otherCount, otherWall, otherCpu, otherAllocated);
+    }
+
+    private synchronized void add(int steps, long wallNanos, long cpuNanos,
+            long allocatedBytes) {
+        count += steps;
+        this.wallNanos += wallNanos;
+        this.cpuNanos = addKnown(this.cpuNanos, cpuNanos);
+        this.allocatedBytes = addKnown(this.allocatedBytes, allocatedBytes);
+    }
+
+    private static long addKnown(long total, long sample) {
+        if (sample < 0) {
+            return total;
+        }
+        return total < 0 ? sample : total + sample;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public synchronized long getWallNanos() {
+        return wallNanos;
+    }
+
+    public synchronized long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                "%1$d steps, wall %2$d ms, cpu %3$d ms, allocated %4$d KiB",
+                count, wallNanos / 1000000, cpuNanos < 0 ? -1
+                        : cpuNanos / 1000000, allocatedBytes < 0 ? -1
+                        : allocatedBytes / 1024);
+    }
+
+    /**
+     * @return CPU time used by the calling thread so far or -1 if not
+     *         measurable.
+     */
+    static long currentThreadCpuNanos() {
+        try {
+            return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean
+                    .getCurrentThreadCpuTime() : -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return Bytes allocated by the calling thread so far or -1 if not
+     *         measurable.
+     */
+    static long currentThreadAllocatedBytes() {
+        try {
+            if (threadBean instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean hotSpotBean = (com.sun.management.ThreadMXBean) threadBean;
+                if (hotSpotBean.isThreadAllocatedMemorySupported()
+                        && hotSpotBean.isThreadAllocatedMemoryEnabled()) {
+                    return hotSpotBean.getThreadAllocatedBytes(Thread
+                            .currentThread().getId());
+                }
+            }
+        } catch (LinkageError e) {
+            // not a HotSpot based JVM
+        } catch (UnsupportedOperationException e) {
+            // fall through
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.ext;
+
+import java.io.PrintStream;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.bdd.ExternalAction;
+import org.activiti.engine.delegate.event.ActivitiActivityEvent;
+import org.activiti.engine.delegate.event.ActivitiEntityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.history.HistoricActivityInstance;
+import org.activiti.engine.history.HistoricProcessInstance;
+import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.engine.test.ActivitiRule;
+
+/**
+ * Aggregates the durations of process instances and their activities into
+ * {@link LatencyHistogram}s, keyed by process definition key and by process
+ * definition key and activity id.
+ *
+ * <p>
+ * Either run as an extension once each scenario's process is complete, in
+ * which case durations are read from history, or {@link #register()} as an
+ * engine event listener to time activities as they execute. Collectors of
+ * parallel workers may be merged before reporting.
+ *
+ * @author Tim Stephenson
+ */
+public class ActivityLatencyCollector implements ExternalAction,
+        ActivitiEventListener {
+
+    private final ActivitiRule activitiRule;
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /** Start times keyed by process instance, then execution and activity. */
+    private final ConcurrentMap<String, ConcurrentMap<String, Long>> activityStarts = new ConcurrentHashMap<String, ConcurrentMap<String, Long>>();
+
+    /**
+     * @param activitiRule
+     */
+    public ActivityLatencyCollector(ActivitiRule activitiRule) {
+        this.activitiRule = activitiRule;
+    }
+
+    public void execute(ActivitiSpec spec) throws Exception {
+        collect(spec.getProcessInstance().getId());
+    }
+
+    /**
+     * Record the durations of the finished activities of the process
+     * instance and, if it has ended, of the instance itself.
+     *
+     * @param piid
+     *            Id of the process instance.
+     */
+    public void collect(String piid) {
+        for (HistoricActivityInstance hai : activitiRule.getHistoryService()
+                .createHistoricActivityInstanceQuery().processInstanceId(piid)
+                .finished().list()) {
+            if (hai.getDurationInMillis() != null) {
+                getHistogram(hai.getProcessDefinitionId(), hai.getActivityId())
+                        .record(hai.getDurationInMillis());
+            }
+        }
+        HistoricProcessInstance hpi = activitiRule.getHistoryService()
+                .createHistoricProcessInstanceQuery().processInstanceId(piid)
+                .singleResult();
+        if (hpi != null && hpi.getDurationInMillis() != null) {
+            getHistogram(hpi.getProcessDefinitionId(), null).record(
+                    hpi.getDurationInMillis());
+        }
+    }
+
+    /**
+     * Time activities as they execute from now on, until
+     * {@link #unregister()}.
+     */
+    public void register() {
+        activitiRule.getRuntimeService().addEventListener(this,
+                ActivitiEventType.ACTIVITY_STARTED,
+                ActivitiEventType.ACTIVITY_COMPLETED,
+                ActivitiEventType.ACTIVITY_CANCELLED,
+                ActivitiEventType.PROCESS_COMPLETED,
+                ActivitiEventType.ENTITY_DELETED);
+    }
+
+    public void unregister() {
+        activitiRule.getRuntimeService().removeEventListener(this);
+    }
+
+    public void onEvent(ActivitiEvent event) {
+        switch (event.getType()) {
+        case ACTIVITY_STARTED:
+            getStarts(event.getProcessInstanceId()).put(toStartKey(event),
+                    System.currentTimeMillis());
+            break;
+        case ACTIVITY_COMPLETED:
+            Long start = getStarts(event.getProcessInstanceId()).remove(
+                    toStartKey(event));
+            if (start != null) {
+                getHistogram(event.getProcessDefinitionId(),
+                        ((ActivitiActivityEvent) event).getActivityId())
+                        .record(System.currentTimeMillis() - start);
+            }
+            break;
+        case ACTIVITY_CANCELLED:
+            // e.g. interrupted by a boundary event, never completes
+            getStarts(event.getProcessInstanceId()).remove(toStartKey(event));
+            break;
+        case PROCESS_COMPLETED:
+            forgetStarts(event.getProcessInstanceId());
+            break;
+        case ENTITY_DELETED:
+            Object entity = ((ActivitiEntityEvent) event).getEntity();
+            // only the process instance itself, not its child executions
+            if (entity instanceof ProcessInstance
+                    && ((ProcessInstance) entity).getId().equals(
+                            ((ProcessInstance) entity).getProcessInstanceId())) {
+                forgetStarts(((ProcessInstance) entity).getId());
+            }
+            break;
+        default:
+            break;
+        }
+    }
+
+    private String toStartKey(ActivitiEvent event) {
+        return event.getExecutionId() + '/'
+                + ((ActivitiActivityEvent) event).getActivityId();
+    }
+
+    private ConcurrentMap<String, Long> getStarts(String piid) {
+        // concurrent maps reject null keys
+        String key = piid == null ? "" : piid;
+        ConcurrentMap<String, Long> starts = activityStarts.get(key);
+        if (starts == null) {
+            ConcurrentMap<String, Long> newStarts = new ConcurrentHashMap<String, Long>();
+            starts = activityStarts.putIfAbsent(key, newStarts);
+            if (starts == null) {
+                starts = newStarts;
+            }
+        }
+        return starts;
+    }
+
+    /**
+     * Drop the start times of activities of a process instance that has
+     * ended, so that they do not accumulate over a long run.
+     */
+    private void forgetStarts(String piid) {
+        if (piid != null) {
+            activityStarts.remove(piid);
+        }
+    }
+
+    public boolean isFailOnException() {
+        return false;
+    }
+
+    /**
+     * @param processDefinitionId
+     *            Id of the definition, the version is ignored.
+     * @param activityId
+     *            Activity id or null for the process as a whole.
+     */
+    protected LatencyHistogram getHistogram(String processDefinitionId,
+            String activityId) {
+        String key = toKey(processDefinitionId)
+                + (activityId == null ? "" : ":" + activityId);
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(key, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Definition ids are of the form key:version:id.
+     */
+    private String toKey(String processDefinitionId) {
+        if (processDefinitionId == null) {
+            return "unknown";
+        }
+        int idx = processDefinitionId.indexOf(':');
+        return idx == -1 ? processDefinitionId : processDefinitionId
+                .substring(0, idx);
+    }
+
+    /**
+     * @return Histograms keyed by process definition key or by process
+     *         definition key and activity id separated by a colon.
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<String, LatencyHistogram>(histograms);
+    }
+
+    /**
+     * Add everything recorded by another collector to this one.
+     *
+     * @param other
+     *            For example, the collector of a parallel worker.
+     */
+    public void merge(ActivityLatencyCollector other) {
+        for (Map.Entry<String, LatencyHistogram> entry : other.histograms
+                .entrySet()) {
+            LatencyHistogram histogram = histograms.get(entry.getKey());
+            if (histogram == null) {
+                LatencyHistogram newHistogram = new LatencyHistogram();
+                histogram = histograms.putIfAbsent(entry.getKey(),
+                        newHistogram);
+                if (histogram == null) {
+                    histogram = newHistogram;
+                }
+            }
+            histogram.merge(entry.getValue());
+        }
+    }
+
+    /**
+     * Write the report, one line per process definition and activity, sorted
+     * by key.
+     *
+     * @param out
+     */
+    public void writeReport(PrintStream out) {
+        out.println("*********** Latency (ms) ***********");
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms()
+                .entrySet()) {
+            out.println(String.format("  %1$s: %2$s", entry.getKey(),
+                    entry.getValue()));
+        }
+    }
+
+    /**
+     * @return The report as comma separated values, with a header line.
+     */
+    public String toCsv() {
+        StringBuilder sb = new StringBuilder(
+                "key,count,min,mean,p50,p90,p95,p99,max");
+        sb.append(System.getProperty("line.separator"));
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms()
+                .entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            sb.append(String.format("%1$s,%2$d,%3$d,%4$.1f,%5$d,%6$d,%7$d,%8$d,%9$d",
+                    entry.getKey(), h.getCount(), h.getMin(), h.getMean(),
+                    h.getValueAtPercentile(50), h.getValueAtPercentile(90),
+                    h.getValueAtPercentile(95), h.getValueAtPercentile(99),
+                    h.getMax()));
+            sb.append(System.getProperty("line.separator"));
+        }
+        return sb.toString();
+    }
+}
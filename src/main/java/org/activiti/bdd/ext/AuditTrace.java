@@ -0,0 +1,367 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.ext;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.engine.HistoryService;
+import org.activiti.engine.history.HistoricActivityInstance;
+import org.activiti.engine.history.HistoricDetail;
+import org.activiti.engine.history.HistoricProcessInstance;
+import org.activiti.engine.history.HistoricVariableUpdate;
+
+/**
+ * The externally driven steps of one historic process instance: how it was
+ * started and which user tasks, catching events and timers moved it on, with
+ * the variables supplied at each step and when.
+ *
+ * <p>
+ * Traces are exported from and imported to a tab separated text format, one
+ * line per step and a blank line between traces, so that the history of a
+ * production engine can be replayed against a test engine by
+ * {@link AuditTrailReplayer}. Only variables of simple types (strings,
+ * numbers and booleans) are carried across. Exporting needs history level
+ * 'full' for the variables.
+ *
+ * @author Tim Stephenson
+ */
+public class AuditTrace {
+
+    /** Kind of external stimulus a step replays. */
+    public enum StepType {
+        /** Start of the process instance, never of a sub-process. */
+        START,
+        /** Completion of a user task. */
+        USER_TASK,
+        /**
+         * Arrival of a message or signal at a receive task, catch event or
+         * boundary message event.
+         */
+        TRIGGER,
+        /** Expiry of an intermediate or boundary timer. */
+        TIMER
+    }
+
+    private static final String ENCODING = "UTF-8";
+
+    private final String processDefinitionKey;
+
+    private final String sourceId;
+
+    private final List<Step> steps = new ArrayList<Step>();
+
+    public AuditTrace(String processDefinitionKey, String sourceId) {
+        this.processDefinitionKey = processDefinitionKey;
+        this.sourceId = sourceId;
+    }
+
+    public String getProcessDefinitionKey() {
+        return processDefinitionKey;
+    }
+
+    /**
+     * @return Id of the process instance the trace was recorded from.
+     */
+    public String getSourceId() {
+        return sourceId;
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    public AuditTrace addStep(StepType type, String activityId,
+            long offsetMillis, Map<String, Object> variables) {
+        steps.add(new Step(type, activityId, offsetMillis, variables));
+        return this;
+    }
+
+    /**
+     * Build the trace of a process instance from history.
+     *
+     * @param historyService
+     * @param piid
+     *            Id of the historic process instance.
+     * @return The trace.
+     */
+    public static AuditTrace fromHistory(HistoryService historyService,
+            String piid) {
+        HistoricProcessInstance hpi = historyService
+                .createHistoricProcessInstanceQuery().processInstanceId(piid)
+                .singleResult();
+        if (hpi == null) {
+            throw new IllegalArgumentException("No history for process "
+                    + piid);
+        }
+        String key = hpi.getProcessDefinitionId().substring(0,
+                hpi.getProcessDefinitionId().indexOf(':'));
+        long start = hpi.getStartTime().getTime();
+
+        // variables supplied at each step, keyed by activity instance
+        Map<String, Map<String, Object>> varsByActivity = new HashMap<String, Map<String, Object>>();
+        for (HistoricDetail detail : historyService.createHistoricDetailQuery()
+                .processInstanceId(piid).variableUpdates()
+                .orderByTime().asc().list()) {
+            HistoricVariableUpdate update = (HistoricVariableUpdate) detail;
+            if (!isSimple(update.getValue())) {
+                continue;
+            }
+            String activityInstanceId = String.valueOf(detail
+                    .getActivityInstanceId());
+            Map<String, Object> vars = varsByActivity.get(activityInstanceId);
+            if (vars == null) {
+                vars = new LinkedHashMap<String, Object>();
+                varsByActivity.put(activityInstanceId, vars);
+            }
+            vars.put(update.getVariableName(), update.getValue());
+        }
+
+        AuditTrace trace = new AuditTrace(key, piid);
+        boolean started = false;
+        for (HistoricActivityInstance hai : historyService
+                .createHistoricActivityInstanceQuery().processInstanceId(piid)
+                .orderByHistoricActivityInstanceStartTime().asc().list()) {
+            StepType type = toStepType(hai.getActivityType());
+            if (type == null || hai.getEndTime() == null) {
+                continue;
+            }
+            if (type == StepType.START) {
+                // start events of embedded and event sub-processes run in
+                // child executions and follow from earlier steps
+                if (started || !piid.equals(hai.getExecutionId())) {
+                    continue;
+                }
+                started = true;
+            }
+            Map<String, Object> vars = varsByActivity.get(hai.getId());
+            if (type == StepType.START) {
+                // start variables are not recorded against any activity
+                Map<String, Object> startVars = new LinkedHashMap<String, Object>();
+                if (varsByActivity.containsKey("null")) {
+                    startVars.putAll(varsByActivity.get("null"));
+                }
+                if (vars != null) {
+                    startVars.putAll(vars);
+                }
+                vars = startVars;
+            }
+            trace.addStep(type, hai.getActivityId(), hai.getEndTime()
+                    .getTime() - start, vars == null ? new HashMap<String, Object>()
+                    : vars);
+        }
+        return trace;
+    }
+
+    private static StepType toStepType(String activityType) {
+        if ("startEvent".equals(activityType)) {
+            return StepType.START;
+        } else if ("userTask".equals(activityType)) {
+            return StepType.USER_TASK;
+        } else if ("receiveTask".equals(activityType)
+                || "intermediateMessageCatch".equals(activityType)
+                || "intermediateSignalCatch".equals(activityType)
+                || "boundaryMessage".equals(activityType)) {
+            return StepType.TRIGGER;
+        } else if ("intermediateTimer".equals(activityType)
+                || "boundaryTimer".equals(activityType)) {
+            return StepType.TIMER;
+        }
+        return null;
+    }
+
+    private static boolean isSimple(Object value) {
+        return value instanceof String || value instanceof Integer
+                || value instanceof Long || value instanceof Double
+                || value instanceof Boolean;
+    }
+
+    /**
+     * Export the traces of many process instances.
+     *
+     * @param traces
+     * @param out
+     *            Flushed but not closed.
+     */
+    public static void write(List<AuditTrace> traces, Writer out)
+            throws IOException {
+        PrintWriter writer = new PrintWriter(out);
+        for (AuditTrace trace : traces) {
+            writer.print("trace\t");
+            writer.print(trace.processDefinitionKey);
+            writer.print('\t');
+            writer.println(trace.sourceId);
+            for (Step step : trace.steps) {
+                writer.print(step.type);
+                writer.print('\t');
+                writer.print(step.activityId);
+                writer.print('\t');
+                writer.print(step.offsetMillis);
+                writer.print('\t');
+                writer.println(encode(step.variables));
+            }
+            writer.println();
+        }
+        writer.flush();
+        if (writer.checkError()) {
+            throw new IOException("Unable to write audit traces");
+        }
+    }
+
+    /**
+     * Import traces written by {@link #write(List, Writer)}.
+     *
+     * @param in
+     *            Closed once read.
+     * @return The traces.
+     */
+    public static List<AuditTrace> read(Reader in) throws IOException {
+        List<AuditTrace> traces = new ArrayList<AuditTrace>();
+        BufferedReader reader = new BufferedReader(in);
+        try {
+            AuditTrace trace = null;
+            String line;
+            int lineNo = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                if (line.trim().length() == 0) {
+                    trace = null;
+                    continue;
+                }
+                String[] fields = line.split("\t", -1);
+                if ("trace".equals(fields[0]) && fields.length == 3) {
+                    trace = new AuditTrace(fields[1], fields[2]);
+                    traces.add(trace);
+                } else if (trace != null && fields.length == 4) {
+                    try {
+                        trace.addStep(StepType.valueOf(fields[0]), fields[1],
+                                Long.parseLong(fields[2]), decode(fields[3]));
+                    } catch (IllegalArgumentException e) {
+                        throw new IOException(String.format(
+                                "Invalid step on line %1$d: %2$s", lineNo,
+                                e.getMessage()));
+                    }
+                } else {
+                    throw new IOException(String.format(
+                            "Invalid audit trace line %1$d: %2$s", lineNo,
+                            line));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return traces;
+    }
+
+    private static String encode(Map<String, Object> vars)
+            throws UnsupportedEncodingException {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> entry : vars.entrySet()) {
+            Object value = entry.getValue();
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(URLEncoder.encode(entry.getKey(), ENCODING)).append('=')
+                    .append(value.getClass().getSimpleName().charAt(0))
+                    .append(':')
+                    .append(URLEncoder.encode(value.toString(), ENCODING));
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, Object> decode(String encoded)
+            throws UnsupportedEncodingException {
+        Map<String, Object> vars = new LinkedHashMap<String, Object>();
+        if (encoded.length() == 0) {
+            return vars;
+        }
+        for (String pair : encoded.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(pair.substring(0, eq), ENCODING);
+            char type = pair.charAt(eq + 1);
+            String value = URLDecoder.decode(pair.substring(eq + 3), ENCODING);
+            switch (type) {
+            case 'I':
+                vars.put(name, Integer.valueOf(value));
+                break;
+            case 'L':
+                vars.put(name, Long.valueOf(value));
+                break;
+            case 'D':
+                vars.put(name, Double.valueOf(value));
+                break;
+            case 'B':
+                vars.put(name, Boolean.valueOf(value));
+                break;
+            default:
+                vars.put(name, value);
+            }
+        }
+        return vars;
+    }
+
+    /**
+     * One external stimulus of the trace.
+     */
+    public static class Step {
+        private final StepType type;
+        private final String activityId;
+        private final long offsetMillis;
+        private final Map<String, Object> variables;
+
+        protected Step(StepType type, String activityId, long offsetMillis,
+                Map<String, Object> variables) {
+            this.type = type;
+            this.activityId = activityId;
+            this.offsetMillis = offsetMillis;
+            this.variables = variables;
+        }
+
+        public StepType getType() {
+            return type;
+        }
+
+        public String getActivityId() {
+            return activityId;
+        }
+
+        /**
+         * @return Milli-seconds after the start of the process instance the
+         *         step happened.
+         */
+        public long getOffsetMillis() {
+            return offsetMillis;
+        }
+
+        public Map<String, Object> getVariables() {
+            return variables;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.ext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.activiti.bdd.ext.AuditTrace.Step;
+import org.activiti.bpmn.model.BoundaryEvent;
+import org.activiti.bpmn.model.FlowElement;
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.impl.EventSubscriptionQueryImpl;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.interceptor.CommandExecutor;
+import org.activiti.engine.impl.persistence.entity.EventSubscriptionEntity;
+import org.activiti.engine.impl.persistence.entity.JobEntity;
+import org.activiti.engine.impl.persistence.entity.MessageEventSubscriptionEntity;
+import org.activiti.engine.runtime.Execution;
+import org.activiti.engine.runtime.Job;
+import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.engine.task.Task;
+
+/**
+ * Replays {@link AuditTrace}s against an engine, many at once, to load test a
+ * model with the shape of real traffic.
+ *
+ * <p>
+ * Each trace starts a new instance of the latest version of its process and
+ * then completes the same user tasks, triggers the same catching events and
+ * fires the same timers, with the recorded variables. Messages are delivered
+ * as messages, so boundary message events interrupt their activity as they
+ * did when recorded. Steps are driven
+ * directly through the engine services rather than an
+ * {@link org.activiti.bdd.ActivitiSpec} because the spec's task lookup is not
+ * limited to one process instance, so would not be safe to run concurrently.
+ *
+ * <pre>
+ * List&lt;AuditTrace&gt; traces = AuditTrace.read(new FileReader(&quot;prod.trace&quot;));
+ * AuditTrailReplayer.Result result = new AuditTrailReplayer(
+ *         activitiRule.getProcessEngine()).usingThreads(16).replay(traces);
+ * System.out.println(result);
+ * </pre>
+ *
+ * @author Tim Stephenson
+ */
+public class AuditTrailReplayer {
+
+    public static final long DEFAULT_STEP_TIMEOUT = 10000;
+
+    private static final long POLL_INTERVAL = 10;
+
+    private final ProcessEngine processEngine;
+
+    private int threads = 1;
+
+    private double speedUp;
+
+    private long stepTimeout = DEFAULT_STEP_TIMEOUT;
+
+    public AuditTrailReplayer(ProcessEngine processEngine) {
+        this.processEngine = processEngine;
+    }
+
+    /**
+     * @param threads
+     *            Number of traces to replay concurrently, default 1.
+     * @return This replayer.
+     */
+    public AuditTrailReplayer usingThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "Number of threads must be at least 1");
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param speedUp
+     *            Replay steps with the recorded gaps between them divided by
+     *            this factor, for example 60 replays an hour in a minute. By
+     *            default, or if 0, steps follow each other without delay.
+     * @return This replayer.
+     */
+    public AuditTrailReplayer withTiming(double speedUp) {
+        this.speedUp = speedUp;
+        return this;
+    }
+
+    /**
+     * @param stepTimeout
+     *            Milli-seconds to wait for the process to be ready for each
+     *            step, for example while asynchronous continuations run.
+     * @return This replayer.
+     */
+    public AuditTrailReplayer stepTimeout(long stepTimeout) {
+        this.stepTimeout = stepTimeout;
+        return this;
+    }
+
+    /**
+     * Replay all the traces, waiting until every one has finished.
+     *
+     * @param traces
+     * @return Outcome of the replay.
+     */
+    public Result replay(List<AuditTrace> traces) throws InterruptedException {
+        final Result result = new Result();
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (final AuditTrace trace : traces) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        long traceStart = System.currentTimeMillis();
+                        try {
+                            replay(trace);
+                            result.durations.record(System
+                                    .currentTimeMillis() - traceStart);
+                            result.replayed.incrementAndGet();
+                        } catch (Exception e) {
+                            result.addFailure(String.format("%1$s: %2$s",
+                                    trace.getSourceId(), e.getMessage()));
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        result.elapsedMillis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    /**
+     * Replay a single trace on the calling thread.
+     *
+     * @param trace
+     * @return Id of the process instance started.
+     */
+    public String replay(AuditTrace trace) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        String piid = null;
+        for (Step step : trace.getSteps()) {
+            if (speedUp > 0) {
+                long due = start + (long) (step.getOffsetMillis() / speedUp);
+                long wait = due - System.currentTimeMillis();
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+            }
+            switch (step.getType()) {
+            case START:
+                if (piid != null) {
+                    // nested start in a trace exported by an older version
+                    break;
+                }
+                piid = processEngine
+                        .getRuntimeService()
+                        .startProcessInstanceByKey(
+                                trace.getProcessDefinitionKey(),
+                                step.getVariables()).getId();
+                break;
+            case USER_TASK:
+                Task task = awaitTask(piid, step.getActivityId());
+                processEngine.getTaskService().complete(task.getId(),
+                        step.getVariables());
+                break;
+            case TRIGGER:
+                trigger(piid, step);
+                break;
+            case TIMER:
+                Job job = awaitTimer(piid, step.getActivityId());
+                processEngine.getManagementService().executeJob(job.getId());
+                break;
+            default:
+                break;
+            }
+        }
+        return piid;
+    }
+
+    private Task awaitTask(String piid, String activityId)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + stepTimeout;
+        while (true) {
+            List<Task> tasks = processEngine.getTaskService().createTaskQuery()
+                    .processInstanceId(piid).taskDefinitionKey(activityId)
+                    .list();
+            if (!tasks.isEmpty()) {
+                return tasks.get(0);
+            }
+            pause(deadline, piid, activityId);
+        }
+    }
+
+    /**
+     * Deliver a message to a catch or boundary event subscribed to one,
+     * otherwise signal the execution waiting at the activity.
+     */
+    private void trigger(String piid, Step step) throws InterruptedException {
+        String activityId = step.getActivityId();
+        long deadline = System.currentTimeMillis() + stepTimeout;
+        while (true) {
+            List<EventSubscriptionEntity> subscriptions = new EventSubscriptionQueryImpl(
+                    getCommandExecutor()).processInstanceId(piid)
+                    .activityId(activityId)
+                    .eventType(MessageEventSubscriptionEntity.EVENT_TYPE)
+                    .list();
+            if (!subscriptions.isEmpty()) {
+                EventSubscriptionEntity subscription = subscriptions.get(0);
+                processEngine.getRuntimeService().messageEventReceived(
+                        subscription.getEventName(),
+                        subscription.getExecutionId(), step.getVariables());
+                return;
+            }
+            List<Execution> executions = processEngine.getRuntimeService()
+                    .createExecutionQuery().processInstanceId(piid)
+                    .activityId(activityId).list();
+            if (!executions.isEmpty()) {
+                processEngine.getRuntimeService().signal(
+                        executions.get(0).getId(), step.getVariables());
+                return;
+            }
+            pause(deadline, piid, activityId);
+        }
+    }
+
+    /**
+     * Find the timer of an intermediate timer event, which waits on the
+     * event's own execution, or of a boundary timer event, which waits on the
+     * execution of the activity it is attached to.
+     */
+    private Job awaitTimer(String piid, String activityId)
+            throws InterruptedException {
+        String waitingAt = getAttachedToActivityId(piid, activityId);
+        if (waitingAt == null) {
+            waitingAt = activityId;
+        }
+        long deadline = System.currentTimeMillis() + stepTimeout;
+        while (true) {
+            List<Job> candidates = new ArrayList<Job>();
+            for (Job job : processEngine.getManagementService()
+                    .createJobQuery().processInstanceId(piid).timers().list()) {
+                Execution execution = processEngine.getRuntimeService()
+                        .createExecutionQuery()
+                        .executionId(job.getExecutionId()).singleResult();
+                if (execution != null
+                        && waitingAt.equals(execution.getActivityId())) {
+                    candidates.add(job);
+                }
+            }
+            if (candidates.size() == 1) {
+                return candidates.get(0);
+            }
+            // several boundary timers on one activity name their event
+            for (Job job : candidates) {
+                if (isTimerOf(job, activityId)) {
+                    return job;
+                }
+            }
+            pause(deadline, piid, activityId);
+        }
+    }
+
+    /**
+     * @return Id of the activity the boundary event is attached to or null if
+     *         the activity is not a boundary event.
+     */
+    private String getAttachedToActivityId(String piid, String activityId) {
+        ProcessInstance pi = processEngine.getRuntimeService()
+                .createProcessInstanceQuery().processInstanceId(piid)
+                .singleResult();
+        if (pi == null) {
+            return null;
+        }
+        FlowElement element = processEngine.getRepositoryService()
+                .getBpmnModel(pi.getProcessDefinitionId())
+                .getFlowElement(activityId);
+        return element instanceof BoundaryEvent ? ((BoundaryEvent) element)
+                .getAttachedToRefId() : null;
+    }
+
+    /**
+     * Timer job configurations hold the id of their timer event, either
+     * alone or as a JSON property.
+     */
+    private boolean isTimerOf(Job job, String activityId) {
+        String config = ((JobEntity) job).getJobHandlerConfiguration();
+        return activityId.equals(config)
+                || (config != null && config.contains("\"activityId\":\""
+                        + activityId + "\""));
+    }
+
+    private CommandExecutor getCommandExecutor() {
+        return ((ProcessEngineConfigurationImpl) processEngine
+                .getProcessEngineConfiguration()).getCommandExecutor();
+    }
+
+    private void pause(long deadline, String piid, String activityId)
+            throws InterruptedException {
+        if (System.currentTimeMillis() > deadline) {
+            throw new ActivitiException(String.format(
+                    "Process %1$s did not reach '%2$s' within %3$d ms", piid,
+                    activityId, stepTimeout));
+        }
+        Thread.sleep(POLL_INTERVAL);
+    }
+
+    /**
+     * Outcome of replaying a set of traces.
+     */
+    public static class Result {
+        private final AtomicInteger replayed = new AtomicInteger();
+
+        private final List<String> failures = Collections
+                .synchronizedList(new ArrayList<String>());
+
+        private final LatencyHistogram durations = new LatencyHistogram();
+
+        private long elapsedMillis;
+
+        void addFailure(String failure) {
+            failures.add(failure);
+        }
+
+        public int getReplayed() {
+            return replayed.get();
+        }
+
+        /**
+         * @return One message for each trace that could not be replayed.
+         */
+        public List<String> getFailures() {
+            synchronized (failures) {
+                return new ArrayList<String>(failures);
+            }
+        }
+
+        /**
+         * @return Wall-clock time taken to replay each trace.
+         */
+        public LatencyHistogram getDurations() {
+            return durations;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%1$d traces replayed, %2$d failed in %3$d ms (%4$.1f per second), durations: %5$s",
+                    getReplayed(), failures.size(), elapsedMillis,
+                    getReplayed() * 1000.0d / Math.max(1, elapsedMillis),
+                    durations);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.util.List;
 
 import org.activiti.bdd.ActivitiSpec;
 import org.activiti.bdd.ExternalAction;
+import org.activiti.bdd.HistoryStep;
 import org.activiti.engine.history.HistoricActivityInstance;
 import org.activiti.engine.history.HistoricDetail;
 import org.activiti.engine.test.ActivitiRule;
@@ -20,6 +21,8 @@ public class DumpAuditTrail implements ExternalAction {
     }
 
     public void execute(ActivitiSpec spec) throws Exception {
+        // final data is only available from variable update details
+        spec.requireHistory(HistoryStep.DUMP_AUDIT_TRAIL);
         System.out.println("Audit trail: ");
 
         List<HistoricActivityInstance> activities = activitiRule
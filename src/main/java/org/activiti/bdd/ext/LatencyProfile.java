@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.ext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Distribution of delays to simulate the response time of a downstream
+ * system.
+ *
+ * @author Tim Stephenson
+ */
+public abstract class LatencyProfile {
+
+    /** No delay at all. */
+    public static final LatencyProfile NONE = fixed(0);
+
+    private final Random random = new Random();
+
+    /**
+     * @return Milli-seconds to delay the next call by.
+     */
+    public abstract long nextMillis();
+
+    protected synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    protected synchronized double nextGaussian() {
+        return random.nextGaussian();
+    }
+
+    /**
+     * @return A profile that always delays by the same amount.
+     */
+    public static LatencyProfile fixed(final long millis) {
+        return new LatencyProfile() {
+            public long nextMillis() {
+                return millis;
+            }
+        };
+    }
+
+    /**
+     * @return A profile with delays equally likely to fall anywhere between
+     *         the minimum and maximum.
+     * @throws IllegalArgumentException
+     *             If the minimum is negative or the maximum less than it.
+     */
+    public static LatencyProfile uniform(final long minMillis,
+            final long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid latency range %1$d to %2$d ms", minMillis,
+                    maxMillis));
+        }
+        return new LatencyProfile() {
+            public long nextMillis() {
+                return minMillis
+                        + (long) (nextDouble() * (maxMillis - minMillis));
+            }
+        };
+    }
+
+    /**
+     * Log-normal delays, the long tailed shape typical of real services.
+     *
+     * @param medianMillis
+     *            Half of all delays are shorter than this.
+     * @param p99Millis
+     *            99% of all delays are shorter than this.
+     * @return The profile.
+     */
+    public static LatencyProfile logNormal(long medianMillis, long p99Millis) {
+        final double mu = Math.log(Math.max(1, medianMillis));
+        // 2.326 is the 99th percentile of the standard normal distribution
+        final double sigma = Math.max(0.0d,
+                (Math.log(Math.max(1, p99Millis)) - mu) / 2.326d);
+        return new LatencyProfile() {
+            public long nextMillis() {
+                return Math.round(Math.exp(mu + sigma * nextGaussian()));
+            }
+        };
+    }
+
+    /**
+     * @param samples
+     *            Observed delays, for example those recorded from a real
+     *            service, each equally likely to be replayed.
+     * @return The profile.
+     */
+    public static LatencyProfile empirical(List<Long> samples) {
+        if (samples.isEmpty()) {
+            return NONE;
+        }
+        final List<Long> copy = new ArrayList<Long>(samples);
+        return new LatencyProfile() {
+            public long nextMillis() {
+                return copy.get((int) (nextDouble() * copy.size()));
+            }
+        };
+    }
+}
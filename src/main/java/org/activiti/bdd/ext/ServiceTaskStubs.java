@@ -0,0 +1,446 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.ext;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.activiti.bdd.ProcessDefinitionCache;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.delegate.event.ActivitiActivityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.RepositoryServiceImpl;
+import org.activiti.engine.impl.bpmn.behavior.AbstractBpmnActivityBehavior;
+import org.activiti.engine.impl.bpmn.behavior.MultiInstanceActivityBehavior;
+import org.activiti.engine.impl.pvm.delegate.ActivityBehavior;
+import org.activiti.engine.impl.pvm.delegate.ActivityExecution;
+import org.activiti.engine.impl.pvm.process.ActivityImpl;
+import org.activiti.engine.impl.pvm.process.ProcessDefinitionImpl;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.rules.ExternalResource;
+
+/**
+ * Records the variables set by service tasks and replays them in place of
+ * the real delegates, with simulated latency, so scenarios and load runs can
+ * exercise realistic downstream behaviour without the downstream systems.
+ *
+ * <pre>
+ * public ServiceTaskStubs stubs = new ServiceTaskStubs(activitiRule);
+ *
+ * &#064;Rule
+ * public RuleChain rules = RuleChain.outerRule(activitiRule).around(stubs);
+ *
+ * &#064;Test
+ * public void testOrder() {
+ *     stubs.replay(&quot;Order&quot;, &quot;checkCredit&quot;,
+ *             ActivitiSpec.buildMap(ActivitiSpec.newPair(&quot;creditOk&quot;, true)),
+ *             LatencyProfile.logNormal(80, 900));
+ *     // run scenario
+ * }
+ * </pre>
+ *
+ * <p>
+ * Stubs replace the behaviour of the activity in the engine's cache of the
+ * latest deployed version of the process, which every test sharing the
+ * engine sees. Used as a rule, as above, the real delegates are restored at
+ * the end of each test; otherwise call {@link #restore()} or
+ * {@link #uninstall()} in a <code>finally</code> block. Stubs are lost if
+ * the cache is cleared, for example by restoring a database snapshot, and
+ * must be installed again afterwards.
+ *
+ * @author Tim Stephenson
+ */
+public class ServiceTaskStubs extends ExternalResource {
+
+    private final ActivitiRule activitiRule;
+
+    private final ProcessEngine processEngine;
+
+    private final Map<ActivityImpl, ActivityBehavior> originals = new HashMap<ActivityImpl, ActivityBehavior>();
+
+    private final Map<String, List<Recording>> recordings = new ConcurrentHashMap<String, List<Recording>>();
+
+    private RecordingListener recordingListener;
+
+    public ServiceTaskStubs(ProcessEngine processEngine) {
+        this.activitiRule = null;
+        this.processEngine = processEngine;
+    }
+
+    /**
+     * @param activitiRule
+     *            Rule whose engine to stub, looked up when first needed so
+     *            that these stubs may be declared alongside the rule.
+     */
+    public ServiceTaskStubs(ActivitiRule activitiRule) {
+        this.activitiRule = activitiRule;
+        this.processEngine = null;
+    }
+
+    /**
+     * Capture the variables set and the time taken by the real delegate of
+     * each execution of the service task.
+     *
+     * @param processDefinitionKey
+     * @param activityId
+     *            BPMN id of the service task.
+     * @return These stubs.
+     */
+    public synchronized ServiceTaskStubs record(String processDefinitionKey,
+            String activityId) {
+        if (recordingListener == null) {
+            recordingListener = new RecordingListener();
+            getProcessEngine().getRuntimeService().addEventListener(
+                    recordingListener, ActivitiEventType.ACTIVITY_STARTED,
+                    ActivitiEventType.ACTIVITY_COMPLETED);
+        }
+        recordingListener.targets.put(
+                resolve(processDefinitionKey) + '/' + activityId,
+                stubKey(processDefinitionKey, activityId));
+        return this;
+    }
+
+    /**
+     * Replace the service task's delegate with one that sets the variables
+     * previously recorded, in turn, each after the delay it took when
+     * recorded.
+     *
+     * @param processDefinitionKey
+     * @param activityId
+     *            BPMN id of the service task.
+     * @return These stubs.
+     */
+    public ServiceTaskStubs replay(String processDefinitionKey,
+            String activityId) {
+        List<Recording> list = recordings.get(stubKey(processDefinitionKey,
+                activityId));
+        if (list == null || list.isEmpty()) {
+            throw new IllegalStateException(String.format(
+                    "Nothing recorded for service task %1$s of %2$s",
+                    activityId, processDefinitionKey));
+        }
+        // null latency keeps each response paired with its own delay
+        return replay(processDefinitionKey, activityId, list, null);
+    }
+
+    /**
+     * Replace the service task's delegate with one that sets the specified
+     * variables after a delay drawn from the latency profile.
+     *
+     * @param processDefinitionKey
+     * @param activityId
+     *            BPMN id of the service task.
+     * @param response
+     *            Variables to set on each execution.
+     * @param latency
+     *            Delays to simulate.
+     * @return These stubs.
+     */
+    public ServiceTaskStubs replay(String processDefinitionKey,
+            String activityId, Map<String, Object> response,
+            LatencyProfile latency) {
+        List<Recording> list = new ArrayList<Recording>();
+        list.add(new Recording(response, 0));
+        return replay(processDefinitionKey, activityId, list, latency);
+    }
+
+    /**
+     * Replaying a service task stops any recording of it, so that stubbed
+     * responses are not recorded as real ones.
+     *
+     * @param latency
+     *            Delays to simulate or null to wait as long as each response
+     *            took when recorded.
+     */
+    protected synchronized ServiceTaskStubs replay(
+            String processDefinitionKey, String activityId,
+            List<Recording> responses, LatencyProfile latency) {
+        ActivityImpl activity = findActivity(processDefinitionKey,
+                activityId);
+        if (recordingListener != null) {
+            recordingListener.targets.remove(resolve(processDefinitionKey)
+                    + '/' + activityId);
+        }
+        ActivityBehavior current = activity.getActivityBehavior();
+        if (current instanceof MultiInstanceActivityBehavior) {
+            throw new IllegalStateException(String.format(
+                    "Cannot stub multi-instance service task %1$s",
+                    activityId));
+        }
+        if (!originals.containsKey(activity)) {
+            originals.put(activity, current);
+        }
+        activity.setActivityBehavior(new StubBehavior(responses, latency));
+        return this;
+    }
+
+    /**
+     * Put back the real delegates of every service task replayed, keeping
+     * any recordings.
+     */
+    public synchronized void restore() {
+        for (Map.Entry<ActivityImpl, ActivityBehavior> entry : originals
+                .entrySet()) {
+            entry.getKey().setActivityBehavior(entry.getValue());
+        }
+        originals.clear();
+    }
+
+    /**
+     * Restore the real delegates and stop recording.
+     */
+    public synchronized void uninstall() {
+        restore();
+        if (recordingListener != null) {
+            getProcessEngine().getRuntimeService().removeEventListener(
+                    recordingListener);
+            recordingListener = null;
+        }
+    }
+
+    @Override
+    protected void after() {
+        uninstall();
+    }
+
+    /**
+     * @return Number of executions recorded for the service task.
+     */
+    public int getRecordingCount(String processDefinitionKey,
+            String activityId) {
+        List<Recording> list = recordings.get(stubKey(processDefinitionKey,
+                activityId));
+        return list == null ? 0 : list.size();
+    }
+
+    /**
+     * Save everything recorded so far, all variable values must be
+     * serializable.
+     *
+     * @param file
+     */
+    public void saveRecordings(File file) throws IOException {
+        HashMap<String, List<Recording>> copy = new HashMap<String, List<Recording>>();
+        for (Map.Entry<String, List<Recording>> entry : recordings.entrySet()) {
+            synchronized (entry.getValue()) {
+                copy.put(entry.getKey(),
+                        new ArrayList<Recording>(entry.getValue()));
+            }
+        }
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(
+                file));
+        try {
+            out.writeObject(copy);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Add the recordings saved by {@link #saveRecordings(File)}, ready to
+     * replay.
+     *
+     * @param file
+     * @return These stubs.
+     */
+    @SuppressWarnings("unchecked")
+    public ServiceTaskStubs loadRecordings(File file) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+        try {
+            Map<String, List<Recording>> loaded = (Map<String, List<Recording>>) in
+                    .readObject();
+            for (Map.Entry<String, List<Recording>> entry : loaded.entrySet()) {
+                getRecordings(entry.getKey()).addAll(entry.getValue());
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Unable to read recordings: "
+                    + e.getMessage());
+        } finally {
+            in.close();
+        }
+        return this;
+    }
+
+    private List<Recording> getRecordings(String stubKey) {
+        synchronized (recordings) {
+            List<Recording> list = recordings.get(stubKey);
+            if (list == null) {
+                list = Collections
+                        .synchronizedList(new ArrayList<Recording>());
+                recordings.put(stubKey, list);
+            }
+            return list;
+        }
+    }
+
+    private ProcessEngine getProcessEngine() {
+        return processEngine == null ? activitiRule.getProcessEngine()
+                : processEngine;
+    }
+
+    private String resolve(String processDefinitionKey) {
+        String id = ProcessDefinitionCache.forEngine(getProcessEngine())
+                .resolveByKey(processDefinitionKey, null);
+        if (id == null) {
+            throw new IllegalStateException(
+                    "No process definition deployed with key "
+                            + processDefinitionKey);
+        }
+        return id;
+    }
+
+    private ActivityImpl findActivity(String processDefinitionKey,
+            String activityId) {
+        ProcessDefinitionImpl definition = (ProcessDefinitionImpl) ((RepositoryServiceImpl) getProcessEngine()
+                .getRepositoryService())
+                .getDeployedProcessDefinition(resolve(processDefinitionKey));
+        ActivityImpl activity = definition.findActivity(activityId);
+        if (activity == null) {
+            throw new IllegalStateException(String.format(
+                    "No activity %1$s in process %2$s", activityId,
+                    processDefinitionKey));
+        }
+        return activity;
+    }
+
+    private static String stubKey(String processDefinitionKey,
+            String activityId) {
+        return processDefinitionKey + ':' + activityId;
+    }
+
+    /**
+     * Variables set by one execution of a service task and the time it took.
+     */
+    protected static class Recording implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final HashMap<String, Object> variables;
+
+        private final long millis;
+
+        protected Recording(Map<String, Object> variables, long millis) {
+            this.variables = new HashMap<String, Object>(variables);
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * Replays responses in turn, each after a delay drawn from the latency
+     * profile or, without one, the delay recorded with it, then leaves the
+     * activity as the real delegate would.
+     */
+    private static class StubBehavior extends AbstractBpmnActivityBehavior {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Recording> responses;
+
+        private final LatencyProfile latency;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        StubBehavior(List<Recording> responses, LatencyProfile latency) {
+            this.responses = new ArrayList<Recording>(responses);
+            this.latency = latency;
+        }
+
+        @Override
+        public void execute(ActivityExecution execution) throws Exception {
+            Recording response = responses
+                    .get((next.getAndIncrement() & Integer.MAX_VALUE)
+                            % responses.size());
+            long millis = latency == null ? response.millis : latency
+                    .nextMillis();
+            if (millis > 0) {
+                Thread.sleep(millis);
+            }
+            execution.setVariables(response.variables);
+            leave(execution);
+        }
+    }
+
+    /**
+     * Diffs the variables of each execution of a recorded service task
+     * between it starting and completing.
+     */
+    private class RecordingListener implements ActivitiEventListener {
+        /** Stub key keyed by process definition id and activity id. */
+        private final Map<String, String> targets = new ConcurrentHashMap<String, String>();
+
+        private final Map<String, Object[]> inFlight = new ConcurrentHashMap<String, Object[]>();
+
+        public void onEvent(ActivitiEvent event) {
+            ActivitiActivityEvent activityEvent = (ActivitiActivityEvent) event;
+            String stubKey = targets.get(event.getProcessDefinitionId() + '/'
+                    + activityEvent.getActivityId());
+            if (stubKey == null) {
+                return;
+            }
+            String executionKey = event.getExecutionId() + '/'
+                    + activityEvent.getActivityId();
+            if (event.getType() == ActivitiEventType.ACTIVITY_STARTED) {
+                inFlight.put(executionKey, new Object[] {
+                        System.currentTimeMillis(),
+                        getVariables(event.getExecutionId()) });
+            } else {
+                Object[] started = inFlight.remove(executionKey);
+                if (started == null) {
+                    return;
+                }
+                @SuppressWarnings("unchecked")
+                Map<String, Object> before = (Map<String, Object>) started[1];
+                Map<String, Object> changed = new HashMap<String, Object>();
+                for (Map.Entry<String, Object> entry : getVariables(
+                        event.getExecutionId()).entrySet()) {
+                    Object old = before.get(entry.getKey());
+                    if (!before.containsKey(entry.getKey())
+                            || (old == null ? entry.getValue() != null : !old
+                                    .equals(entry.getValue()))) {
+                        changed.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                getRecordings(stubKey).add(
+                        new Recording(changed, System.currentTimeMillis()
+                                - (Long) started[0]));
+            }
+        }
+
+        private Map<String, Object> getVariables(String executionId) {
+            // joins the command context the event was dispatched in
+            return new HashMap<String, Object>(getProcessEngine()
+                    .getRuntimeService().getVariables(executionId));
+        }
+
+        public boolean isFailOnException() {
+            return false;
+        }
+    }
+}
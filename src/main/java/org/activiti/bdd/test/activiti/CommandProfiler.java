@@ -0,0 +1,316 @@
+package org.activiti.bdd.test.activiti;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.interceptor.AbstractCommandInterceptor;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandConfig;
+import org.activiti.engine.impl.interceptor.CommandExecutor;
+import org.activiti.engine.impl.interceptor.CommandExecutorImpl;
+import org.activiti.engine.impl.interceptor.CommandInterceptor;
+
+/**
+ * Command interceptor that times every engine command by class, counts
+ * invocations and counts the entity events dispatched by each top-level
+ * command.
+ *
+ * <p>
+ * The profiler sits just inside the first interceptor of the engine's chain,
+ * so times include opening and flushing the command context. Counters are
+ * per command class, so threads running different commands do not contend.
+ * Entity events are the entity created, updated and deleted events the engine
+ * dispatches as entities are queued for the flush that ends each top-level
+ * command. They approximate the size of the flush but are not a measure of
+ * it: updates found by the flush's dirty check and bulk deletes dispatch no
+ * events, so are not counted.
+ *
+ * <p>
+ * Install once the engine is built, e.g. with
+ * {@link ExtendedRule#installCommandProfiler()} in a <code>&#064;Before</code>
+ * method, then read the results here or through JMX under
+ * <code>org.activiti.bdd:type=CommandProfiler</code>.
+ *
+ * @author Tim Stephenson
+ */
+public class CommandProfiler extends AbstractCommandInterceptor implements
+        CommandProfilerMXBean, ActivitiEventListener {
+
+    private final String engineName;
+
+    private final ConcurrentMap<String, AtomicLong[]> commandStats = new ConcurrentHashMap<String, AtomicLong[]>();
+
+    private final AtomicLong flushCount = new AtomicLong();
+
+    private final AtomicLong entityEventCount = new AtomicLong();
+
+    private final AtomicLong maxEntityEvents = new AtomicLong();
+
+    /**
+     * Command nesting depth, entity events so far and top-level commands
+     * executed, per thread.
+     */
+    private final ThreadLocal<long[]> threadState = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[3];
+        }
+    };
+
+    private ObjectName objectName;
+
+    protected CommandProfiler(String engineName) {
+        this.engineName = engineName;
+    }
+
+    /**
+     * Add a profiler to the engine's command interceptor chain unless it
+     * already has one.
+     *
+     * @param config
+     *            Configuration of a built engine.
+     * @return The engine's profiler.
+     */
+    public static synchronized CommandProfiler install(
+            ProcessEngineConfigurationImpl config) {
+        CommandExecutor executor = config.getCommandExecutor();
+        if (!(executor instanceof CommandExecutorImpl)) {
+            throw new IllegalStateException(
+                    "Cannot profile command executor of type "
+                            + executor.getClass().getName());
+        }
+        CommandProfiler profiler = find(config);
+        if (profiler != null) {
+            return profiler;
+        }
+
+        CommandInterceptor first = ((CommandExecutorImpl) executor).getFirst();
+        profiler = new CommandProfiler(config.getProcessEngineName());
+        profiler.setNext(first.getNext());
+        first.setNext(profiler);
+        config.getEventDispatcher().addEventListener(profiler,
+                ActivitiEventType.ENTITY_CREATED,
+                ActivitiEventType.ENTITY_UPDATED,
+                ActivitiEventType.ENTITY_DELETED);
+        profiler.register();
+        return profiler;
+    }
+
+    /**
+     * @param config
+     *            Configuration of a built engine.
+     * @return The engine's profiler or null if none is installed.
+     */
+    public static CommandProfiler find(ProcessEngineConfigurationImpl config) {
+        CommandExecutor executor = config.getCommandExecutor();
+        if (executor instanceof CommandExecutorImpl) {
+            for (CommandInterceptor i = ((CommandExecutorImpl) executor)
+                    .getFirst(); i != null; i = i.getNext()) {
+                if (i instanceof CommandProfiler) {
+                    return (CommandProfiler) i;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Take the engine's profiler, if any, out of its command interceptor
+     * chain.
+     *
+     * @param config
+     *            Configuration of a built engine.
+     */
+    public static synchronized void uninstall(
+            ProcessEngineConfigurationImpl config) {
+        CommandExecutor executor = config.getCommandExecutor();
+        if (!(executor instanceof CommandExecutorImpl)) {
+            return;
+        }
+        for (CommandInterceptor i = ((CommandExecutorImpl) executor)
+                .getFirst(); i != null; i = i.getNext()) {
+            if (i.getNext() instanceof CommandProfiler) {
+                CommandProfiler profiler = (CommandProfiler) i.getNext();
+                i.setNext(profiler.getNext());
+                config.getEventDispatcher().removeEventListener(profiler);
+                profiler.unregister();
+                return;
+            }
+        }
+    }
+
+    public <T> T execute(CommandConfig config, Command<T> command) {
+        long[] state = threadState.get();
+        if (state[0]++ == 0) {
+            state[1] = 0;
+            state[2]++;
+        }
+        long start = System.nanoTime();
+        try {
+            return next.execute(config, command);
+        } finally {
+            AtomicLong[] stats = getStats(command.getClass().getName());
+            stats[0].incrementAndGet();
+            stats[1].addAndGet(System.nanoTime() - start);
+            if (--state[0] == 0) {
+                recordFlush(state[1]);
+            }
+        }
+    }
+
+    public void onEvent(ActivitiEvent event) {
+        long[] state = threadState.get();
+        if (state[0] > 0) {
+            state[1]++;
+        }
+    }
+
+    public boolean isFailOnException() {
+        return false;
+    }
+
+    private AtomicLong[] getStats(String commandClass) {
+        AtomicLong[] stats = commandStats.get(commandClass);
+        if (stats == null) {
+            AtomicLong[] newStats = new AtomicLong[] { new AtomicLong(),
+                    new AtomicLong() };
+            stats = commandStats.putIfAbsent(commandClass, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    private void recordFlush(long entityEvents) {
+        flushCount.incrementAndGet();
+        entityEventCount.addAndGet(entityEvents);
+        long max = maxEntityEvents.get();
+        while (entityEvents > max
+                && !maxEntityEvents.compareAndSet(max, entityEvents)) {
+            max = maxEntityEvents.get();
+        }
+    }
+
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong[]> entry : commandStats.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue()[0].get());
+        }
+        return counts;
+    }
+
+    public Map<String, Long> getCommandMillis() {
+        Map<String, Long> millis = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong[]> entry : commandStats.entrySet()) {
+            millis.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry
+                    .getValue()[1].get()));
+        }
+        return millis;
+    }
+
+    /**
+     * @return Number of top-level commands the calling thread has executed
+     *         since the profiler was installed, take the difference of two
+     *         calls to count the commands (e.g. queries) of a piece of code.
+     */
+    public long getThreadCommandCount() {
+        return threadState.get()[2];
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public long getEntityEventCount() {
+        return entityEventCount.get();
+    }
+
+    public long getMaxEntityEventsPerCommand() {
+        return maxEntityEvents.get();
+    }
+
+    public void reset() {
+        commandStats.clear();
+        flushCount.set(0);
+        entityEventCount.set(0);
+        maxEntityEvents.set(0);
+    }
+
+    /**
+     * Write the invocation count and time of each command, slowest first.
+     *
+     * @param out
+     */
+    public void writeReport(PrintStream out) {
+        out.println("*********** Engine commands ***********");
+        Map<String, Long> counts = getCommandCounts();
+        List<Map.Entry<String, Long>> byTime = new ArrayList<Map.Entry<String, Long>>(
+                getCommandMillis().entrySet());
+        Collections.sort(byTime, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> o1,
+                    Map.Entry<String, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        for (Map.Entry<String, Long> entry : byTime) {
+            out.println(String.format("  %1$s: %2$d calls, %3$d ms",
+                    entry.getKey(), counts.get(entry.getKey()),
+                    entry.getValue()));
+        }
+        out.println(String.format(
+                "  flushes: %1$d, entity events: %2$d, most in one command: %3$d",
+                getFlushCount(), getEntityEventCount(),
+                getMaxEntityEventsPerCommand()));
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName(
+                    "org.activiti.bdd:type=CommandProfiler,engine="
+                            + ObjectName.quote(String.valueOf(engineName)));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            // profiling still works, only JMX access is lost
+            System.err.println("Unable to register command profiler: "
+                    + e.getMessage());
+            objectName = null;
+        }
+    }
+
+    private void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    objectName);
+        } catch (JMException e) {
+            System.err.println("Unable to unregister command profiler: "
+                    + e.getMessage());
+        }
+        objectName = null;
+    }
+}
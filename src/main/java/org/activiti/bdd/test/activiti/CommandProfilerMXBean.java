@@ -0,0 +1,48 @@
+package org.activiti.bdd.test.activiti;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link CommandProfiler}, registered with the
+ * platform MBean server while the profiler is installed.
+ *
+ * @author Tim Stephenson
+ */
+public interface CommandProfilerMXBean {
+
+    /**
+     * @return Number of invocations keyed by command class name.
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * @return Total elapsed milli-seconds keyed by command class name,
+     *         including the time of any nested commands.
+     */
+    Map<String, Long> getCommandMillis();
+
+    /**
+     * @return Number of top-level commands, each of which ends in a flush.
+     */
+    long getFlushCount();
+
+    /**
+     * @return Total number of entity created, updated and deleted events
+     *         dispatched by all top-level commands. This approximates the
+     *         rows written but misses updates found only by the flush's dirty
+     *         check and bulk deletes, neither of which dispatch events.
+     */
+    long getEntityEventCount();
+
+    /**
+     * @return Largest number of entity events dispatched by a single
+     *         top-level command, with the same caveats as
+     *         {@link #getEntityEventCount()}.
+     */
+    long getMaxEntityEventsPerCommand();
+
+    /**
+     * Zero all counters.
+     */
+    void reset();
+}
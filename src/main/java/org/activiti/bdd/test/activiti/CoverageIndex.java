@@ -0,0 +1,303 @@
+package org.activiti.bdd.test.activiti;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Which BPMN elements each scenario covered, with a hash of each element's
+ * definition when it last ran, persisted to a text file between runs.
+ *
+ * <p>
+ * Elements are identified as &lt;process id&gt;:&lt;element id&gt;, the
+ * process element itself as &lt;process id&gt;:. The hash of an element
+ * covers its name, attributes, text and any children without ids of their
+ * own, so that moving a shape in the diagram changes nothing but editing a
+ * task's form key, a flow's condition or a process attribute does. The hash
+ * of a flow node also covers the ids and hashes of its incoming and outgoing
+ * sequence flows, so that adding a conditional flow to a covered gateway
+ * changes the gateway.
+ *
+ * @author Tim Stephenson
+ */
+public class CoverageIndex {
+
+    private final File file;
+
+    /** Element hash keyed by element, keyed by scenario. */
+    private final Map<String, Map<String, String>> scenarios = new TreeMap<String, Map<String, String>>();
+
+    protected CoverageIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param file
+     *            Index file, need not exist yet.
+     * @return The index held in the file or an empty one.
+     */
+    public static CoverageIndex load(File file) throws IOException {
+        CoverageIndex index = new CoverageIndex(file);
+        if (!file.exists()) {
+            return index;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                Map<String, String> elements = new TreeMap<String, String>();
+                for (int i = 1; i < fields.length; i++) {
+                    int eq = fields[i].lastIndexOf('=');
+                    elements.put(fields[i].substring(0, eq),
+                            fields[i].substring(eq + 1));
+                }
+                index.scenarios.put(fields[0], elements);
+            }
+        } finally {
+            in.close();
+        }
+        return index;
+    }
+
+    /**
+     * Write the index back to its file.
+     */
+    public synchronized void save() throws IOException {
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(file), "UTF-8"));
+        try {
+            out.println("# scenario<TAB>process:element=hash ...");
+            for (Map.Entry<String, Map<String, String>> scenario : scenarios
+                    .entrySet()) {
+                out.print(scenario.getKey());
+                for (Map.Entry<String, String> element : scenario.getValue()
+                        .entrySet()) {
+                    out.print('\t');
+                    out.print(element.getKey());
+                    out.print('=');
+                    out.print(element.getValue());
+                }
+                out.println();
+            }
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("Unable to write coverage index " + file);
+        }
+    }
+
+    /**
+     * @return Hash of each element the scenario covered when it last ran or
+     *         null if it has not run before.
+     */
+    public synchronized Map<String, String> getCoverage(String scenario) {
+        Map<String, String> elements = scenarios.get(scenario);
+        return elements == null ? null : Collections
+                .unmodifiableMap(elements);
+    }
+
+    /**
+     * Replace the scenario's coverage.
+     *
+     * @param scenario
+     * @param elements
+     *            Hash keyed by element.
+     */
+    public synchronized void setCoverage(String scenario,
+            Map<String, String> elements) {
+        scenarios.put(scenario, new TreeMap<String, String>(elements));
+    }
+
+    /**
+     * @param scenario
+     * @param currentHashes
+     *            Hash of every element of the processes deployed now, keyed
+     *            by element.
+     * @return Elements covered by the scenario that have changed or been
+     *         removed since it last ran, or null if it has not run before or
+     *         covered no element, so must always run.
+     */
+    public synchronized List<String> getChangedElements(String scenario,
+            Map<String, String> currentHashes) {
+        Map<String, String> covered = scenarios.get(scenario);
+        if (covered == null || covered.isEmpty()) {
+            return null;
+        }
+        List<String> changed = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : covered.entrySet()) {
+            if (!entry.getValue().equals(currentHashes.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param bpmn
+     *            BPMN 2.0 XML, closed once read.
+     * @return Hash of every element of every process, keyed by element.
+     */
+    public static Map<String, String> hashElements(InputStream bpmn)
+            throws IOException {
+        Map<String, String> hashes = new HashMap<String, String>();
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory
+                    .newInstance();
+            factory.setNamespaceAware(true);
+            Document doc = factory.newDocumentBuilder().parse(bpmn);
+            NodeList processes = doc.getDocumentElement()
+                    .getElementsByTagNameNS("*", "process");
+            for (int i = 0; i < processes.getLength(); i++) {
+                Element process = (Element) processes.item(i);
+                String prefix = process.getAttribute("id") + ':';
+                hashElement(prefix, process, hashes);
+                foldFlows(prefix, process, hashes);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Unable to parse BPMN: " + e.getMessage());
+        } finally {
+            bpmn.close();
+        }
+        return hashes;
+    }
+
+    private static void hashElement(String key, Element element,
+            Map<String, String> hashes) throws NoSuchAlgorithmException {
+        StringBuilder canonical = new StringBuilder();
+        String prefix = key.substring(0, key.indexOf(':') + 1);
+        canonicalise(element, canonical, prefix, hashes);
+        hashes.put(key, digest(canonical.toString()));
+    }
+
+    /**
+     * Rehash each flow node of the process, including those of its
+     * sub-processes, together with its incoming and outgoing flows.
+     */
+    private static void foldFlows(String prefix, Element process,
+            Map<String, String> hashes) throws NoSuchAlgorithmException {
+        Map<String, Map<String, String>> flowsByNode = new HashMap<String, Map<String, String>>();
+        NodeList flows = process.getElementsByTagNameNS("*", "sequenceFlow");
+        for (int i = 0; i < flows.getLength(); i++) {
+            Element flow = (Element) flows.item(i);
+            String flowKey = prefix + flow.getAttribute("id");
+            String flowHash = hashes.get(flowKey);
+            addFlow(flowsByNode, prefix + flow.getAttribute("sourceRef"),
+                    "out " + flowKey, flowHash);
+            addFlow(flowsByNode, prefix + flow.getAttribute("targetRef"),
+                    "in " + flowKey, flowHash);
+        }
+        for (Map.Entry<String, Map<String, String>> node : flowsByNode
+                .entrySet()) {
+            String nodeHash = hashes.get(node.getKey());
+            if (nodeHash == null) {
+                continue;
+            }
+            StringBuilder canonical = new StringBuilder(nodeHash);
+            for (Map.Entry<String, String> flow : node.getValue().entrySet()) {
+                canonical.append('\n').append(flow.getKey()).append('=')
+                        .append(flow.getValue());
+            }
+            hashes.put(node.getKey(), digest(canonical.toString()));
+        }
+    }
+
+    private static void addFlow(Map<String, Map<String, String>> flowsByNode,
+            String nodeKey, String flow, String flowHash) {
+        Map<String, String> nodeFlows = flowsByNode.get(nodeKey);
+        if (nodeFlows == null) {
+            nodeFlows = new TreeMap<String, String>();
+            flowsByNode.put(nodeKey, nodeFlows);
+        }
+        nodeFlows.put(flow, flowHash);
+    }
+
+    private static String digest(String canonical)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        byte[] bytes;
+        try {
+            bytes = digest.digest(canonical.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder hex = new StringBuilder();
+        // 40 bits is plenty to tell versions of one element apart
+        for (int i = 0; i < 5; i++) {
+            hex.append(String.format("%02x", bytes[i]));
+        }
+        return hex.toString();
+    }
+
+    private static void canonicalise(Element element, StringBuilder sb,
+            String prefix, Map<String, String> hashes)
+            throws NoSuchAlgorithmException {
+        sb.append('<').append(element.getLocalName());
+        NamedNodeMap attrs = element.getAttributes();
+        Map<String, String> sorted = new TreeMap<String, String>();
+        for (int i = 0; i < attrs.getLength(); i++) {
+            Attr attr = (Attr) attrs.item(i);
+            if (!"xmlns".equals(attr.getPrefix())) {
+                sorted.put(attr.getLocalName() == null ? attr.getName()
+                        : attr.getLocalName(), attr.getValue());
+            }
+        }
+        for (Map.Entry<String, String> attr : sorted.entrySet()) {
+            sb.append(' ').append(attr.getKey()).append("=\"")
+                    .append(attr.getValue()).append('"');
+        }
+        sb.append('>');
+        NodeList children = element.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            if (child instanceof Element) {
+                Element childElement = (Element) child;
+                String id = childElement.getAttribute("id");
+                if (id.length() > 0) {
+                    // hashed separately
+                    hashElement(prefix + id, childElement, hashes);
+                } else {
+                    canonicalise(childElement, sb, prefix, hashes);
+                }
+            } else if (child.getNodeType() == Node.TEXT_NODE
+                    || child.getNodeType() == Node.CDATA_SECTION_NODE) {
+                sb.append(child.getNodeValue().trim());
+            }
+        }
+        sb.append("</>");
+    }
+}
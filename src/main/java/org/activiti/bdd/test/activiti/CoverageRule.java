@@ -0,0 +1,214 @@
+package org.activiti.bdd.test.activiti;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.RepositoryService;
+import org.activiti.engine.delegate.event.ActivitiActivityEvent;
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.delegate.event.ActivitiSequenceFlowTakenEvent;
+import org.activiti.engine.repository.ProcessDefinition;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.Assume;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * Records which BPMN elements each scenario covers in a {@link CoverageIndex}
+ * and, on later runs, skips scenarios none of whose covered elements have
+ * changed since they last passed.
+ *
+ * <p>
+ * The engine and the test's deployments must be in place before this rule
+ * runs, so chain it inside the engine rule:
+ *
+ * <pre>
+ * public ActivitiRule activitiRule = new ActivitiRule(&quot;test-activiti.cfg.xml&quot;);
+ *
+ * &#064;Rule
+ * public RuleChain rules = RuleChain.outerRule(activitiRule).around(
+ *         new CoverageRule(activitiRule, new File(&quot;target/bpmn-coverage.idx&quot;)));
+ * </pre>
+ *
+ * Set the system property {@value #SELECT_ALL_PROPERTY} to true to run every
+ * scenario, for example in a nightly build, still refreshing the index.
+ *
+ * @author Tim Stephenson
+ */
+public class CoverageRule implements TestRule {
+
+    public static final String SELECT_ALL_PROPERTY = "activiti.bdd.coverage.all";
+
+    private static final Map<File, CoverageIndex> indexes = new HashMap<File, CoverageIndex>();
+
+    private final ActivitiRule activitiRule;
+
+    private final File indexFile;
+
+    public CoverageRule(ActivitiRule activitiRule, File indexFile) {
+        this.activitiRule = activitiRule;
+        this.indexFile = indexFile;
+    }
+
+    public Statement apply(final Statement base, final Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                ProcessEngine processEngine = activitiRule.getProcessEngine();
+                if (processEngine == null) {
+                    throw new IllegalStateException(
+                            "No process engine, chain CoverageRule inside the ActivitiRule");
+                }
+                String scenario = description.getClassName() + '#'
+                        + description.getMethodName();
+                CoverageIndex index = getIndex(indexFile);
+                ModelHashes hashes = new ModelHashes(
+                        processEngine.getRepositoryService());
+
+                if (!Boolean.getBoolean(SELECT_ALL_PROPERTY)) {
+                    List<String> changed = index.getChangedElements(scenario,
+                            hashes.latest(index.getCoverage(scenario)));
+                    // null when never run or nothing was covered
+                    Assume.assumeTrue(String.format(
+                            "No BPMN element covered by %1$s has changed",
+                            scenario), changed == null || !changed.isEmpty());
+                }
+
+                Recorder recorder = new Recorder();
+                processEngine.getRuntimeService().addEventListener(recorder,
+                        ActivitiEventType.ACTIVITY_STARTED,
+                        ActivitiEventType.SEQUENCEFLOW_TAKEN);
+                try {
+                    base.evaluate();
+                } finally {
+                    processEngine.getRuntimeService().removeEventListener(
+                            recorder);
+                }
+
+                // only reached if the scenario passed, so a failing one will
+                // be selected again next time
+                index.setCoverage(scenario, hashes.covered(recorder.covered));
+                index.save();
+            }
+        };
+    }
+
+    private static CoverageIndex getIndex(File file) throws IOException {
+        synchronized (indexes) {
+            CoverageIndex index = indexes.get(file);
+            if (index == null) {
+                index = CoverageIndex.load(file);
+                indexes.put(file, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Collects process definition id and element id of every activity
+     * started and sequence flow taken.
+     */
+    private static class Recorder implements ActivitiEventListener {
+        private final Set<String> covered = Collections
+                .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        public void onEvent(ActivitiEvent event) {
+            String elementId = event instanceof ActivitiSequenceFlowTakenEvent ? ((ActivitiSequenceFlowTakenEvent) event)
+                    .getId() : ((ActivitiActivityEvent) event).getActivityId();
+            if (event.getProcessDefinitionId() != null && elementId != null) {
+                covered.add(event.getProcessDefinitionId() + '\n' + elementId);
+            }
+        }
+
+        public boolean isFailOnException() {
+            return false;
+        }
+    }
+
+    /**
+     * Element hashes of deployed process definitions, each parsed once.
+     */
+    private static class ModelHashes {
+        private final RepositoryService repositoryService;
+
+        private final Map<String, Map<String, String>> byDefinitionId = new HashMap<String, Map<String, String>>();
+
+        ModelHashes(RepositoryService repositoryService) {
+            this.repositoryService = repositoryService;
+        }
+
+        Map<String, String> get(String processDefinitionId)
+                throws IOException {
+            Map<String, String> hashes = byDefinitionId
+                    .get(processDefinitionId);
+            if (hashes == null) {
+                hashes = CoverageIndex.hashElements(repositoryService
+                        .getProcessModel(processDefinitionId));
+                byDefinitionId.put(processDefinitionId, hashes);
+            }
+            return hashes;
+        }
+
+        /**
+         * @return Current hashes of the elements of the latest version of
+         *         every process with a covered element.
+         */
+        Map<String, String> latest(Map<String, String> coverage)
+                throws IOException {
+            Map<String, String> current = new HashMap<String, String>();
+            if (coverage == null) {
+                return current;
+            }
+            Set<String> keys = new HashSet<String>();
+            for (String element : coverage.keySet()) {
+                keys.add(element.substring(0, element.indexOf(':')));
+            }
+            for (String key : keys) {
+                ProcessDefinition definition = repositoryService
+                        .createProcessDefinitionQuery()
+                        .processDefinitionKey(key).latestVersion()
+                        .singleResult();
+                // not deployed at all counts as changed
+                if (definition != null) {
+                    current.putAll(get(definition.getId()));
+                }
+            }
+            return current;
+        }
+
+        /**
+         * @return Hash of each covered element and of the process elements
+         *         containing them, keyed by element.
+         */
+        Map<String, String> covered(Set<String> covered) throws IOException {
+            Map<String, String> elements = new TreeMap<String, String>();
+            for (String entry : covered) {
+                int sep = entry.indexOf('\n');
+                String definitionId = entry.substring(0, sep);
+                String key = definitionId.substring(0,
+                        definitionId.indexOf(':'));
+                Map<String, String> hashes = get(definitionId);
+                String element = key + ':' + entry.substring(sep + 1);
+                if (hashes.containsKey(element)) {
+                    elements.put(element, hashes.get(element));
+                }
+                if (hashes.containsKey(key + ':')) {
+                    elements.put(key + ':', hashes.get(key + ':'));
+                }
+            }
+            return elements;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.activiti.bdd.test.activiti;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.bdd.ProcessDefinitionCache;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+
+/**
+ * In-memory copy of an engine's H2 database, allowing an expensive state (for
+ * example the GIVEN phase of a scenario) to be built once and then restored
+ * in milliseconds.
+ *
+ * <p>
+ * The snapshot covers the whole database, including deployments. Anything
+ * deployed by <code>&#064;Deployment</code> after the snapshot was taken is
+ * therefore lost on restore, so deploy the models a snapshot relies on in the
+ * set up that builds it. The job executor should be idle while taking or
+ * restoring a snapshot.
+ *
+ * @author Tim Stephenson
+ */
+public class DatabaseSnapshot {
+
+    private static final Map<String, DatabaseSnapshot> snapshots = new HashMap<String, DatabaseSnapshot>();
+
+    private final String name;
+
+    private final List<String> script;
+
+    private Object attachment;
+
+    protected DatabaseSnapshot(String name, List<String> script) {
+        this.name = name;
+        this.script = script;
+    }
+
+    /**
+     * Take a snapshot of the engine's database, replacing any previous one of
+     * the same name.
+     *
+     * @param processEngine
+     * @param name
+     *            Identifies the snapshot, for example the GIVEN phrase.
+     * @return The snapshot.
+     */
+    public static DatabaseSnapshot capture(ProcessEngine processEngine,
+            String name) throws SQLException {
+        List<String> script = new ArrayList<String>();
+        Connection conn = getConnection(processEngine);
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                ResultSet rs = stmt.executeQuery("SCRIPT");
+                while (rs.next()) {
+                    script.add(rs.getString(1));
+                }
+                rs.close();
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            conn.close();
+        }
+
+        DatabaseSnapshot snapshot = new DatabaseSnapshot(name,
+                Collections.unmodifiableList(script));
+        synchronized (snapshots) {
+            snapshots.put(registryKey(processEngine, name), snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return The named snapshot of the engine's database or null if none has
+     *         been taken.
+     */
+    public static DatabaseSnapshot get(ProcessEngine processEngine, String name) {
+        synchronized (snapshots) {
+            return snapshots.get(registryKey(processEngine, name));
+        }
+    }
+
+    /**
+     * Forget the named snapshot.
+     */
+    public static void discard(ProcessEngine processEngine, String name) {
+        synchronized (snapshots) {
+            snapshots.remove(registryKey(processEngine, name));
+        }
+    }
+
+    /**
+     * Replace the content of the engine's database with this snapshot.
+     *
+     * @param processEngine
+     */
+    public void restore(ProcessEngine processEngine) throws SQLException {
+        ProcessEngineConfigurationImpl config = getConfiguration(processEngine);
+        String propertyTable = config.getDatabaseTablePrefix()
+                + "ACT_GE_PROPERTY";
+        Connection conn = getConnection(processEngine);
+        try {
+            Statement stmt = conn.createStatement();
+            try {
+                // the engine may hold a block of ids issued after the snapshot
+                long nextDbId = getNextDbId(stmt, propertyTable);
+
+                stmt.execute("DROP ALL OBJECTS");
+                for (String sql : script) {
+                    stmt.execute(sql);
+                }
+
+                if (getNextDbId(stmt, propertyTable) < nextDbId) {
+                    stmt.executeUpdate(String.format(
+                            "UPDATE %1$s SET VALUE_ = '%2$d' WHERE NAME_ = 'next.dbid'",
+                            propertyTable, nextDbId));
+                }
+            } finally {
+                stmt.close();
+            }
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+        } finally {
+            conn.close();
+        }
+
+        // definitions deployed since the snapshot no longer exist
+        config.getDeploymentManager().getProcessDefinitionCache().clear();
+        ProcessDefinitionCache.forEngine(processEngine).invalidate();
+    }
+
+    private long getNextDbId(Statement stmt, String propertyTable)
+            throws SQLException {
+        ResultSet rs = stmt.executeQuery(String.format(
+                "SELECT VALUE_ FROM %1$s WHERE NAME_ = 'next.dbid'",
+                propertyTable));
+        try {
+            return rs.next() ? Long.parseLong(rs.getString(1)) : 0;
+        } finally {
+            rs.close();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Number of SQL statements needed to restore the snapshot.
+     */
+    public int size() {
+        return script.size();
+    }
+
+    /**
+     * @return State the caller associated with the snapshot, may be null.
+     */
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    /**
+     * @param attachment
+     *            State outside the database to keep with the snapshot, for
+     *            example that of the specification which built it.
+     */
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    private static Connection getConnection(ProcessEngine processEngine)
+            throws SQLException {
+        Connection conn = getConfiguration(processEngine).getDataSource()
+                .getConnection();
+        String product = conn.getMetaData().getDatabaseProductName();
+        if (!"H2".equalsIgnoreCase(product)) {
+            conn.close();
+            throw new IllegalStateException(
+                    "Database snapshots are only supported on H2, not "
+                            + product);
+        }
+        return conn;
+    }
+
+    private static ProcessEngineConfigurationImpl getConfiguration(
+            ProcessEngine processEngine) {
+        return (ProcessEngineConfigurationImpl) processEngine
+                .getProcessEngineConfiguration();
+    }
+
+    private static String registryKey(ProcessEngine processEngine, String name) {
+        return processEngine.getName() + '/' + name;
+    }
+}
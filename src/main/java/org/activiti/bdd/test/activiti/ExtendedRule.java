@@ -7,30 +7,53 @@ import static org.junit.Assert.assertTrue;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import org.activiti.engine.ActivitiException;
 import org.activiti.engine.ProcessEngine;
 import org.activiti.engine.form.TaskFormData;
 import org.activiti.engine.history.HistoricActivityInstance;
+import org.activiti.engine.history.HistoricProcessInstance;
 import org.activiti.engine.history.HistoricVariableInstance;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.history.HistoryLevel;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
 import org.activiti.engine.runtime.Job;
 import org.activiti.engine.runtime.ProcessInstance;
 import org.activiti.engine.runtime.ProcessInstanceQuery;
 import org.activiti.engine.task.IdentityLink;
 import org.activiti.engine.task.Task;
 import org.activiti.engine.test.ActivitiRule;
+import org.junit.runner.Description;
 
 /**
  * Provides observation and assertion support for tasks created within process
  * tests. Consider submitting as patch to Activiti.
  * 
- * @author tstephen
+ * @author Tim Stephenson
  * 
  */
 public class ExtendedRule extends ActivitiRule {
     public static final int DEFAULT_PRIORITY = 50;
+    public static final int DEFAULT_PURGE_BATCH_SIZE = 100;
     private Map<String, Object> emptyData = Collections.emptyMap();
+    private boolean purgeOnFinish;
+    private ScheduledExecutorService purgeExecutor;
+    private ProcessStateTracer stateTracer;
+    private final Set<String> startedProcessInstanceIds = Collections
+            .synchronizedSet(new LinkedHashSet<String>());
+    private volatile RuntimeException backgroundPurgeFailure;
+    private HistoryLevel originalHistoryLevel;
 
     public ExtendedRule(String alternateConfig) {
         super(alternateConfig);
@@ -40,6 +63,8 @@ public class ExtendedRule extends ActivitiRule {
         super(pe);
         formService = pe.getFormService();
         historyService = pe.getHistoryService();
+        identityService = pe.getIdentityService();
+        managementService = pe.getManagementService();
         repositoryService = pe.getRepositoryService();
         runtimeService = pe.getRuntimeService();
         taskService = pe.getTaskService();
@@ -68,6 +93,23 @@ public class ExtendedRule extends ActivitiRule {
         dumpAuditTrail(piid);
     }
 
+    /**
+     * Print only what changed in the process instance since this was last
+     * called for it, the first time its whole state. Cheap enough to call
+     * after every step.
+     *
+     * @param piid
+     * @see ProcessStateTracer
+     */
+    public void traceProcessState(String piid) {
+        if (stateTracer == null) {
+            stateTracer = new ProcessStateTracer(getProcessEngine());
+        }
+        System.out.println(String.format(
+                "************ State changes for piid %1$s ************", piid));
+        stateTracer.trace(piid, System.out);
+    }
+
     public void dumpCurrentJobs(String piid) {
         List<Job> jobList = managementService.createJobQuery()
                 .processInstanceId(piid).list();
@@ -256,6 +298,244 @@ public class ExtendedRule extends ActivitiRule {
                 .processInstanceId(piid).singleResult().getEndTime() != null;
     }
 
+    /**
+     * @return Number of rows in each history table, useful to compare the
+     *         write volume of different history levels.
+     */
+    public Map<String, Long> getHistoryRowCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, Long> entry : managementService.getTableCount()
+                .entrySet()) {
+            if (entry.getKey().toUpperCase().contains("ACT_HI_")) {
+                counts.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Note a top-level process instance started by the current test, so that
+     * it can be purged by {@link #purgeFinished(int)} or at the end of the
+     * test. Specifications using this rule register the instances they
+     * start.
+     *
+     * @param piid
+     */
+    public void registerProcessInstance(String piid) {
+        startedProcessInstanceIds.add(piid);
+    }
+
+    /**
+     * @param purgeOnFinish
+     *            If true, the process instances registered by the test, and
+     *            any sub-processes they called, are purged at the end of
+     *            each test, keeping a long-lived engine's tables from growing
+     *            without limit.
+     */
+    public void setPurgeOnFinish(boolean purgeOnFinish) {
+        this.purgeOnFinish = purgeOnFinish;
+    }
+
+    /**
+     * Change the engine's history level until the end of the test, when the
+     * level it had before is restored.
+     *
+     * @param level
+     */
+    public void setHistoryLevel(HistoryLevel level) {
+        if (originalHistoryLevel == null) {
+            originalHistoryLevel = getProcessEngineConfiguration()
+                    .getHistoryLevel();
+        }
+        getProcessEngineConfiguration().setHistoryLevel(level);
+    }
+
+    /**
+     * Put back the history level the engine had before
+     * {@link #setHistoryLevel(HistoryLevel)} was first called.
+     */
+    public void restoreHistoryLevel() {
+        if (originalHistoryLevel != null) {
+            getProcessEngineConfiguration().setHistoryLevel(
+                    originalHistoryLevel);
+            originalHistoryLevel = null;
+        }
+    }
+
+    @Override
+    protected void finished(Description description) {
+        restoreHistoryLevel();
+        if (purgeOnFinish) {
+            purgeRegistered(DEFAULT_PURGE_BATCH_SIZE);
+        }
+        startedProcessInstanceIds.clear();
+        super.finished(description);
+    }
+
+    /**
+     * Remove all runtime and history data of the process instance and any
+     * sub-processes it called, in a single transaction.
+     *
+     * @param piid
+     *            Id of the top-level process instance.
+     */
+    public void purgeProcessTree(final String piid) {
+        managementService.executeCommand(new Command<Void>() {
+            public Void execute(CommandContext commandContext) {
+                if (runtimeService.createProcessInstanceQuery()
+                        .processInstanceId(piid).count() > 0) {
+                    // also deletes any running sub-processes
+                    runtimeService.deleteProcessInstance(piid, "purged");
+                }
+                // none is kept below activity level; cascades to the history
+                // of sub-processes
+                if (historyService.createHistoricProcessInstanceQuery()
+                        .processInstanceId(piid).count() > 0) {
+                    historyService.deleteHistoricProcessInstance(piid);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Purge the finished process instances registered by this test and
+     * their sub-processes. Other tests' instances on a shared engine are left
+     * alone.
+     *
+     * @param batchSize
+     *            Number of process trees to delete in each transaction.
+     * @return Number of process trees purged.
+     * @see #registerProcessInstance(String)
+     */
+    public int purgeFinished(int batchSize) {
+        List<String> registered;
+        synchronized (startedProcessInstanceIds) {
+            registered = new ArrayList<String>(startedProcessInstanceIds);
+        }
+        List<String> finished = new ArrayList<String>();
+        for (int i = 0; i < registered.size(); i += batchSize) {
+            Set<String> chunk = new HashSet<String>(registered.subList(i,
+                    Math.min(i + batchSize, registered.size())));
+            for (HistoricProcessInstance hpi : historyService
+                    .createHistoricProcessInstanceQuery()
+                    .processInstanceIds(chunk).finished().list()) {
+                finished.add(hpi.getId());
+            }
+        }
+        return purge(finished, batchSize);
+    }
+
+    /**
+     * Purge all the process instances registered by this test, finished or
+     * not, and their sub-processes.
+     *
+     * @param batchSize
+     *            Number of process trees to delete in each transaction.
+     * @return Number of process trees purged.
+     */
+    public int purgeRegistered(int batchSize) {
+        List<String> registered;
+        synchronized (startedProcessInstanceIds) {
+            registered = new ArrayList<String>(startedProcessInstanceIds);
+        }
+        return purge(registered, batchSize);
+    }
+
+    private int purge(List<String> piids, int batchSize) {
+        for (int i = 0; i < piids.size(); i += batchSize) {
+            final List<String> batch = piids.subList(i,
+                    Math.min(i + batchSize, piids.size()));
+            managementService.executeCommand(new Command<Void>() {
+                public Void execute(CommandContext commandContext) {
+                    // nested commands join this transaction
+                    for (String piid : batch) {
+                        purgeProcessTree(piid);
+                    }
+                    return null;
+                }
+            });
+            startedProcessInstanceIds.removeAll(batch);
+        }
+        return piids.size();
+    }
+
+    /**
+     * Periodically purge the finished process instances registered by this
+     * test on a background thread until {@link #stopBackgroundPurge()} is
+     * called. The first failure stops the purge and is rethrown by
+     * {@link #stopBackgroundPurge()}.
+     *
+     * @param intervalMillis
+     *            Milli-seconds between purges.
+     * @param batchSize
+     *            Number of process trees to delete in each transaction.
+     */
+    public synchronized void startBackgroundPurge(long intervalMillis,
+            final int batchSize) {
+        stopBackgroundPurge();
+        purgeExecutor = Executors
+                .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "activiti-bdd-purge");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        purgeExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    purgeFinished(batchSize);
+                } catch (RuntimeException e) {
+                    backgroundPurgeFailure = e;
+                    // cancels further runs
+                    throw e;
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop purging in the background.
+     *
+     * @throws ActivitiException
+     *             If a background purge failed since it was started.
+     */
+    public synchronized void stopBackgroundPurge() {
+        if (purgeExecutor != null) {
+            purgeExecutor.shutdownNow();
+            purgeExecutor = null;
+        }
+        RuntimeException failure = backgroundPurgeFailure;
+        backgroundPurgeFailure = null;
+        if (failure != null) {
+            throw new ActivitiException("Background purge failed: "
+                    + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Time all engine commands from now on, call once the engine has been
+     * built, for example in a <code>&#064;Before</code> method.
+     *
+     * @return The engine's command profiler.
+     */
+    public CommandProfiler installCommandProfiler() {
+        return CommandProfiler.install(getProcessEngineConfiguration());
+    }
+
+    /**
+     * Stop timing engine commands.
+     */
+    public void uninstallCommandProfiler() {
+        CommandProfiler.uninstall(getProcessEngineConfiguration());
+    }
+
+    public ProcessEngineConfigurationImpl getProcessEngineConfiguration() {
+        return (ProcessEngineConfigurationImpl) getProcessEngine()
+                .getProcessEngineConfiguration();
+    }
+
     public void assertVariableValue(String piid, String name, Object val) {
         List<HistoricVariableInstance> list = getHistoryService()
                 .createHistoricVariableInstanceQuery().processInstanceId(piid)
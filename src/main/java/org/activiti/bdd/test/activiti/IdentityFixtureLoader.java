@@ -0,0 +1,213 @@
+package org.activiti.bdd.test.activiti;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.activiti.engine.IdentityService;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.identity.Group;
+import org.activiti.engine.identity.User;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+
+/**
+ * Loads users, groups and memberships from a text resource, many to each
+ * transaction, so that large identity fixtures can be set up quickly.
+ *
+ * <p>
+ * Each line of the resource holds one comma separated record, blank lines
+ * and those starting with '#' are ignored:
+ *
+ * <pre>
+ * group,&lt;id&gt;,&lt;name&gt;,&lt;type&gt;
+ * user,&lt;id&gt;,&lt;first name&gt;,&lt;last name&gt;,&lt;email&gt;,&lt;password&gt;
+ * membership,&lt;user id&gt;,&lt;group id&gt;
+ * </pre>
+ *
+ * Trailing fields may be omitted. Groups are created first, then users, then
+ * memberships, whatever the order of the lines.
+ *
+ * @author Tim Stephenson
+ */
+public class IdentityFixtureLoader {
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final ProcessEngine processEngine;
+
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    private final List<String[]> groups = new ArrayList<String[]>();
+
+    private final List<String[]> users = new ArrayList<String[]>();
+
+    private final List<String[]> memberships = new ArrayList<String[]>();
+
+    public IdentityFixtureLoader(ProcessEngine processEngine) {
+        this.processEngine = processEngine;
+    }
+
+    /**
+     * @param batchSize
+     *            Number of records to insert in each transaction.
+     * @return This loader.
+     */
+    public IdentityFixtureLoader batchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Batch size must be at least 1");
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Read the records of a classpath resource, call {@link #load()} to
+     * insert them.
+     *
+     * @param resource
+     *            Classpath resource name.
+     * @return This loader.
+     */
+    public IdentityFixtureLoader read(String resource) throws IOException {
+        InputStream is = getClass().getResourceAsStream(resource);
+        if (is == null) {
+            throw new IOException("Unable to load identity fixture: "
+                    + resource);
+        }
+        return read(new InputStreamReader(is, "UTF-8"));
+    }
+
+    /**
+     * Read the records from a reader, which is closed afterwards, call
+     * {@link #load()} to insert them.
+     *
+     * @param reader
+     * @return This loader.
+     */
+    public IdentityFixtureLoader read(Reader reader) throws IOException {
+        BufferedReader in = new BufferedReader(reader);
+        try {
+            String line;
+            int lineNo = 0;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = fields[i].trim();
+                }
+                if ("group".equals(fields[0]) && fields.length >= 2) {
+                    groups.add(fields);
+                } else if ("user".equals(fields[0]) && fields.length >= 2) {
+                    users.add(fields);
+                } else if ("membership".equals(fields[0])
+                        && fields.length >= 3) {
+                    memberships.add(fields);
+                } else {
+                    throw new IOException(String.format(
+                            "Invalid identity record on line %1$d: %2$s",
+                            lineNo, line));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return this;
+    }
+
+    /**
+     * Insert all the records read so far.
+     *
+     * @return Number of records inserted.
+     */
+    public int load() {
+        final IdentityService identityService = processEngine
+                .getIdentityService();
+        int count = 0;
+        count += insertInBatches(groups, new RecordWriter() {
+            public void write(String[] fields) {
+                Group group = identityService.newGroup(fields[1]);
+                group.setName(field(fields, 2));
+                group.setType(field(fields, 3));
+                identityService.saveGroup(group);
+            }
+        });
+        count += insertInBatches(users, new RecordWriter() {
+            public void write(String[] fields) {
+                User user = identityService.newUser(fields[1]);
+                user.setFirstName(field(fields, 2));
+                user.setLastName(field(fields, 3));
+                user.setEmail(field(fields, 4));
+                user.setPassword(field(fields, 5));
+                identityService.saveUser(user);
+            }
+        });
+        count += insertInBatches(memberships, new RecordWriter() {
+            public void write(String[] fields) {
+                identityService.createMembership(fields[1], fields[2]);
+            }
+        });
+        groups.clear();
+        users.clear();
+        memberships.clear();
+        return count;
+    }
+
+    /**
+     * @return Number of groups read but not yet loaded.
+     */
+    public int getGroupCount() {
+        return groups.size();
+    }
+
+    /**
+     * @return Number of users read but not yet loaded.
+     */
+    public int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * @return Number of memberships read but not yet loaded.
+     */
+    public int getMembershipCount() {
+        return memberships.size();
+    }
+
+    private int insertInBatches(List<String[]> records,
+            final RecordWriter writer) {
+        for (int i = 0; i < records.size(); i += batchSize) {
+            final List<String[]> batch = records.subList(i,
+                    Math.min(i + batchSize, records.size()));
+            processEngine.getManagementService().executeCommand(
+                    new Command<Void>() {
+                        public Void execute(CommandContext commandContext) {
+                            // nested service calls join this transaction
+                            for (String[] fields : batch) {
+                                writer.write(fields);
+                            }
+                            return null;
+                        }
+                    });
+        }
+        return records.size();
+    }
+
+    private static String field(String[] fields, int idx) {
+        return idx < fields.length && fields[idx].length() > 0 ? fields[idx]
+                : null;
+    }
+
+    private interface RecordWriter {
+        void write(String[] fields);
+    }
+}
@@ -0,0 +1,196 @@
+package org.activiti.bdd.test.activiti;
+
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.activiti.engine.ActivitiException;
+import org.activiti.engine.ManagementService;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.impl.asyncexecutor.AsyncExecutor;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.jobexecutor.JobExecutor;
+import org.activiti.engine.runtime.Execution;
+import org.activiti.engine.runtime.Job;
+
+/**
+ * Waits for the job executor to process all executable jobs, like
+ * <code>JobTestHelper.waitForJobExecutorToProcessAllJobs</code>, but fails as
+ * soon as a job throws rather than waiting for its retries to run out and the
+ * time limit to pass.
+ *
+ * <p>
+ * Jobs that already carried an exception when the wait began are ignored, so
+ * that a failure left behind by an earlier scenario does not fail this one.
+ *
+ * @author Tim Stephenson
+ */
+public class JobWaiter {
+
+    public static final long DEFAULT_POLL_INTERVAL = 10;
+
+    private final ProcessEngine processEngine;
+
+    private final ManagementService managementService;
+
+    private long pollInterval = DEFAULT_POLL_INTERVAL;
+
+    public JobWaiter(ProcessEngine processEngine) {
+        this.processEngine = processEngine;
+        this.managementService = processEngine.getManagementService();
+    }
+
+    /**
+     * @param pollInterval
+     *            Milli-seconds between checks for outstanding and failed
+     *            jobs.
+     * @return This waiter.
+     */
+    public JobWaiter pollInterval(long pollInterval) {
+        this.pollInterval = pollInterval;
+        return this;
+    }
+
+    /**
+     * @param timeout
+     *            Milli-seconds to wait for all jobs to be processed.
+     * @throws ActivitiException
+     *             If jobs are still outstanding after the timeout.
+     * @throws AssertionError
+     *             As soon as a job has failed, with the stack trace and the
+     *             activity it failed at.
+     */
+    public void waitForAllJobs(long timeout) {
+        waitForJobs(null, timeout);
+    }
+
+    /**
+     * As {@link #waitForAllJobs(long)} but only waits for, and only fails on,
+     * the jobs of the specified process instances, so that other scenarios
+     * sharing the engine neither hold up nor fail the wait. Jobs of
+     * sub-processes they call are not included.
+     *
+     * @param processInstanceIds
+     *            Process instances whose jobs to wait for, or null for all.
+     * @param timeout
+     *            Milli-seconds to wait for their jobs to be processed.
+     */
+    public void waitForJobs(Collection<String> processInstanceIds, long timeout) {
+        Set<String> scope = processInstanceIds == null ? null
+                : new HashSet<String>(processInstanceIds);
+        ProcessEngineConfigurationImpl config = (ProcessEngineConfigurationImpl) processEngine
+                .getProcessEngineConfiguration();
+        Set<String> failedBefore = getFailedJobIds(scope);
+        JobExecutor jobExecutor = config.getJobExecutor();
+        AsyncExecutor asyncExecutor = config.getAsyncExecutor();
+        boolean async = config.isAsyncExecutorEnabled();
+        // leave an executor the engine was already running as it was
+        boolean started = async ? !asyncExecutor.isActive() : !jobExecutor
+                .isActive();
+        if (started && async) {
+            asyncExecutor.start();
+        } else if (started) {
+            jobExecutor.start();
+        }
+        try {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (true) {
+                failOnNewFailures(scope, failedBefore);
+                if (!areJobsAvailable(scope)) {
+                    return;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new ActivitiException("time limit of " + timeout
+                            + " was exceeded");
+                }
+                try {
+                    Thread.sleep(pollInterval);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ActivitiException(
+                            "interrupted waiting for jobs", e);
+                }
+            }
+        } finally {
+            if (started && async) {
+                asyncExecutor.shutdown();
+            } else if (started) {
+                jobExecutor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @param scope
+     *            Process instance ids or null for all.
+     */
+    protected boolean areJobsAvailable(Set<String> scope) {
+        if (scope == null) {
+            return managementService.createJobQuery().executable().count() > 0;
+        }
+        return !inScope(
+                managementService.createJobQuery().executable().list(), scope)
+                .isEmpty();
+    }
+
+    /**
+     * @param scope
+     *            Process instance ids or null for all.
+     */
+    protected Set<String> getFailedJobIds(Set<String> scope) {
+        Set<String> ids = new HashSet<String>();
+        for (Job job : inScope(managementService.createJobQuery()
+                .withException().list(), scope)) {
+            ids.add(job.getId());
+        }
+        return ids;
+    }
+
+    private void failOnNewFailures(Set<String> scope, Set<String> failedBefore) {
+        List<Job> failed = inScope(managementService.createJobQuery()
+                .withException().list(), scope);
+        for (Job job : failed) {
+            if (!failedBefore.contains(job.getId())) {
+                fail(describeFailure(job));
+            }
+        }
+    }
+
+    private List<Job> inScope(List<Job> jobs, Set<String> scope) {
+        if (scope == null) {
+            return jobs;
+        }
+        List<Job> matches = new ArrayList<Job>();
+        for (Job job : jobs) {
+            if (scope.contains(job.getProcessInstanceId())) {
+                matches.add(job);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return Message identifying the job, its activity and the exception it
+     *         threw.
+     */
+    protected String describeFailure(Job job) {
+        String activityId = null;
+        if (job.getExecutionId() != null) {
+            Execution execution = processEngine.getRuntimeService()
+                    .createExecutionQuery().executionId(job.getExecutionId())
+                    .singleResult();
+            if (execution != null) {
+                activityId = execution.getActivityId();
+            }
+        }
+        return String.format(
+                "Job %1$s failed at activity '%2$s' of process instance %3$s (%4$d retries left): %5$s%n%6$s",
+                job.getId(), activityId, job.getProcessInstanceId(),
+                job.getRetries(), job.getExceptionMessage(),
+                managementService.getJobExceptionStacktrace(job.getId()));
+    }
+}
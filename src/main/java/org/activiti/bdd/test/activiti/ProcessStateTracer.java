@@ -0,0 +1,298 @@
+package org.activiti.bdd.test.activiti;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.history.HistoricActivityInstance;
+import org.activiti.engine.history.HistoricVariableInstance;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.history.HistoryLevel;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.activiti.engine.impl.persistence.entity.HistoricActivityInstanceEntity;
+import org.activiti.engine.runtime.Execution;
+import org.activiti.engine.runtime.Job;
+import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.engine.task.Task;
+
+/**
+ * Cheap alternative to {@link ExtendedRule#dumpProcessState(String)} for
+ * tracing every step of a long scenario: captures a compact fingerprint of a
+ * process instance's activities, variables, jobs and tasks and reports only
+ * what changed since the previous trace of the same instance.
+ *
+ * <p>
+ * Activities are read from history when the engine records at least
+ * 'activity' history, so that activities started and finished within one
+ * step still show, otherwise from the current executions. Each trace reads
+ * only the activity instances started or ended since the previous one.
+ *
+ * @author Tim Stephenson
+ */
+public class ProcessStateTracer {
+
+    public static final int MAX_VALUE_LENGTH = 60;
+
+    private final ProcessEngine processEngine;
+
+    private final Map<String, Fingerprint> previous = new HashMap<String, Fingerprint>();
+
+    public ProcessStateTracer(ProcessEngine processEngine) {
+        this.processEngine = processEngine;
+    }
+
+    /**
+     * Print what changed in the process instance since it was last traced,
+     * or its whole state the first time.
+     *
+     * @param piid
+     * @param out
+     */
+    public void trace(String piid, PrintStream out) {
+        for (String change : trace(piid)) {
+            out.println(change);
+        }
+    }
+
+    /**
+     * @param piid
+     * @return One line for each change to the process instance since it was
+     *         last traced, or for each part of its state the first time.
+     */
+    public synchronized List<String> trace(String piid) {
+        Fingerprint before = previous.get(piid);
+        if (before == null) {
+            before = new Fingerprint();
+        }
+        Fingerprint current = capture(piid, before);
+        previous.put(piid, current);
+        return diff(before, current);
+    }
+
+    /**
+     * Forget all previous traces.
+     */
+    public synchronized void reset() {
+        previous.clear();
+    }
+
+    private Fingerprint capture(final String piid, final Fingerprint before) {
+        final ProcessEngineConfigurationImpl config = (ProcessEngineConfigurationImpl) processEngine
+                .getProcessEngineConfiguration();
+        final boolean activityHistory = config.getHistoryLevel().isAtLeast(
+                HistoryLevel.ACTIVITY);
+        return processEngine.getManagementService().executeCommand(
+                new Command<Fingerprint>() {
+                    public Fingerprint execute(CommandContext commandContext) {
+                        // nested service calls share this command's session
+                        return capture(piid, activityHistory, config.getClock()
+                                .getCurrentTime(), before);
+                    }
+                });
+    }
+
+    private Fingerprint capture(String piid, boolean activityHistory,
+            Date now, Fingerprint before) {
+        Fingerprint fp = new Fingerprint();
+        ProcessInstance pi = processEngine.getRuntimeService()
+                .createProcessInstanceQuery().processInstanceId(piid)
+                .singleResult();
+        fp.ended = pi == null;
+
+        if (activityHistory) {
+            fp.activitiesReadAt = now;
+            List<HistoricActivityInstance> changed;
+            if (before.activitiesReadAt == null
+                    || now.before(before.activitiesReadAt)) {
+                // first trace or the clock was put back
+                changed = processEngine.getHistoryService()
+                        .createHistoricActivityInstanceQuery()
+                        .processInstanceId(piid)
+                        .orderByHistoricActivityInstanceStartTime().asc()
+                        .list();
+            } else {
+                fp.activities.putAll(before.activities);
+                changed = processEngine.getHistoryService()
+                        .createNativeHistoricActivityInstanceQuery()
+                        .sql(changedActivitiesSql())
+                        .parameter("piid", piid)
+                        .parameter("since", before.activitiesReadAt).list();
+            }
+            for (HistoricActivityInstance hai : changed) {
+                fp.activities.put(hai.getId(), hai.getActivityId()
+                        + (hai.getEndTime() == null ? "" : "\n"));
+            }
+        } else if (!fp.ended) {
+            for (Execution execution : processEngine.getRuntimeService()
+                    .createExecutionQuery().processInstanceId(piid).list()) {
+                if (execution.getActivityId() != null) {
+                    // keyed by activity too, so a move shows as - and +
+                    fp.activities.put(execution.getId() + '/'
+                            + execution.getActivityId(),
+                            execution.getActivityId());
+                }
+            }
+        }
+
+        if (fp.ended) {
+            if (activityHistory) {
+                for (HistoricVariableInstance hvi : processEngine
+                        .getHistoryService()
+                        .createHistoricVariableInstanceQuery()
+                        .processInstanceId(piid).list()) {
+                    fp.variables.put(hvi.getVariableName(),
+                            describe(hvi.getValue()));
+                }
+            } else {
+                // final values are unknown
+                fp.variables = null;
+            }
+        } else {
+            for (Map.Entry<String, Object> entry : processEngine
+                    .getRuntimeService().getVariables(piid).entrySet()) {
+                fp.variables.put(entry.getKey(), describe(entry.getValue()));
+            }
+            for (Task task : processEngine.getTaskService().createTaskQuery()
+                    .processInstanceId(piid).list()) {
+                fp.tasks.put(task.getId(), String.format("'%1$s' (%2$s)%3$s",
+                        task.getName(), task.getTaskDefinitionKey(),
+                        task.getAssignee() == null ? "" : " assigned to "
+                                + task.getAssignee()));
+            }
+            for (Job job : processEngine.getManagementService()
+                    .createJobQuery().processInstanceId(piid).list()) {
+                fp.jobs.put(job.getId(), String.format("%1$s%2$s%3$s",
+                        job.getId(), job.getDuedate() == null ? ""
+                                : " due " + job.getDuedate(),
+                        job.getExceptionMessage() == null ? ""
+                                : " failed: " + job.getExceptionMessage()));
+            }
+        }
+        return fp;
+    }
+
+    /**
+     * @return SQL selecting the activity instances of process #{piid} started
+     *         or ended at or after #{since}.
+     */
+    private String changedActivitiesSql() {
+        return "SELECT * FROM "
+                + processEngine.getManagementService().getTableName(
+                        HistoricActivityInstanceEntity.class)
+                + " WHERE PROC_INST_ID_ = #{piid} AND (START_TIME_ >= #{since}"
+                + " OR END_TIME_ >= #{since})"
+                + " ORDER BY START_TIME_ ASC";
+    }
+
+    private static String describe(Object value) {
+        if (value instanceof byte[]) {
+            return String.format("byte[%1$d]#%2$08x", ((byte[]) value).length,
+                    Arrays.hashCode((byte[]) value));
+        }
+        String s = String.valueOf(value);
+        if (s.length() > MAX_VALUE_LENGTH) {
+            // keep a hash of the whole value so changes past the cut show
+            return String.format("%1$s...#%2$08x",
+                    s.substring(0, MAX_VALUE_LENGTH), s.hashCode());
+        }
+        return s;
+    }
+
+    private static List<String> diff(Fingerprint before, Fingerprint after) {
+        List<String> changes = new ArrayList<String>();
+        for (Map.Entry<String, String> entry : after.activities.entrySet()) {
+            String was = before.activities.get(entry.getKey());
+            String activityId = entry.getValue().trim();
+            if (was == null) {
+                changes.add(String.format("  + activity '%1$s'", activityId));
+            }
+            if (entry.getValue().endsWith("\n")
+                    && (was == null || !was.endsWith("\n"))) {
+                changes.add(String.format("  - activity '%1$s' (finished)",
+                        activityId));
+            }
+        }
+        for (Map.Entry<String, String> entry : before.activities.entrySet()) {
+            if (!after.activities.containsKey(entry.getKey())) {
+                changes.add(String.format("  - activity '%1$s'", entry
+                        .getValue().trim()));
+            }
+        }
+
+        if (after.variables != null) {
+            Map<String, String> was = before.variables == null ? new HashMap<String, String>()
+                    : before.variables;
+            for (Map.Entry<String, String> entry : after.variables.entrySet()) {
+                String old = was.get(entry.getKey());
+                if (old == null && !was.containsKey(entry.getKey())) {
+                    changes.add(String.format("  + var %1$s = %2$s",
+                            entry.getKey(), entry.getValue()));
+                } else if (!entry.getValue().equals(old)) {
+                    changes.add(String.format("  ~ var %1$s: %2$s -> %3$s",
+                            entry.getKey(), old, entry.getValue()));
+                }
+            }
+            for (String name : was.keySet()) {
+                if (!after.variables.containsKey(name)) {
+                    changes.add(String.format("  - var %1$s", name));
+                }
+            }
+        }
+
+        diff("task", before.tasks, after.tasks, changes);
+        diff("job", before.jobs, after.jobs, changes);
+
+        if (after.ended && !before.ended) {
+            changes.add("  process ended");
+        }
+        return changes;
+    }
+
+    private static void diff(String kind, Map<String, String> before,
+            Map<String, String> after, List<String> changes) {
+        for (Map.Entry<String, String> entry : after.entrySet()) {
+            String was = before.get(entry.getKey());
+            if (was == null) {
+                changes.add(String.format("  + %1$s %2$s", kind,
+                        entry.getValue()));
+            } else if (!was.equals(entry.getValue())) {
+                changes.add(String.format("  ~ %1$s %2$s", kind,
+                        entry.getValue()));
+            }
+        }
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            if (!after.containsKey(entry.getKey())) {
+                changes.add(String.format("  - %1$s %2$s", kind,
+                        entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Compact state of a process instance, every part keyed by id.
+     */
+    private static class Fingerprint {
+        private boolean ended;
+
+        /** Engine time the activities were read from history, if they were. */
+        private Date activitiesReadAt;
+
+        /** Activity id, with a trailing new line once finished, in start order. */
+        private final Map<String, String> activities = new LinkedHashMap<String, String>();
+
+        /** Description of value by name or null if unknown. */
+        private Map<String, String> variables = new TreeMap<String, String>();
+
+        private final Map<String, String> tasks = new TreeMap<String, String>();
+
+        private final Map<String, String> jobs = new TreeMap<String, String>();
+    }
+}
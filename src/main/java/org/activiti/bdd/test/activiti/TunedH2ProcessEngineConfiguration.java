@@ -0,0 +1,126 @@
+package org.activiti.bdd.test.activiti;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.ProcessEngineConfiguration;
+import org.activiti.engine.impl.cfg.StandaloneInMemProcessEngineConfiguration;
+import org.activiti.engine.impl.history.HistoryLevel;
+
+/**
+ * Engine configuration for specification runs against a private in-memory H2
+ * database.
+ *
+ * <p>
+ * This is the standard persistence layer on H2, not an in-memory replacement
+ * for it: the only differences from the usual test configuration are a plain
+ * data source without pool validation, no diagram generation on deploy, ids
+ * reserved in larger blocks and a database per engine name, so that several
+ * engines may run in one JVM. Queries and history behave exactly as with any
+ * other database.
+ *
+ * <p>
+ * One engine is built per name and shared by every rule created for that
+ * name, much as ActivitiRule caches engines by configuration resource. Engines
+ * are closed when the JVM exits or explicitly by {@link #close(String)}, for
+ * example from an <code>&#064;AfterClass</code> method.
+ *
+ * <pre>
+ * &#064;Rule
+ * public ExtendedRule activitiRule = TunedH2ProcessEngineConfiguration
+ *         .createRule(&quot;myTest&quot;);
+ * </pre>
+ *
+ * @author Tim Stephenson
+ */
+public class TunedH2ProcessEngineConfiguration extends
+        StandaloneInMemProcessEngineConfiguration {
+
+    public static final int ID_BLOCK_SIZE = 10000;
+
+    private static final Map<String, ProcessEngine> engines = new HashMap<String, ProcessEngine>();
+
+    private static boolean shutdownHookAdded;
+
+    /**
+     * @param name
+     *            Engine and database name, must be unique within the JVM.
+     */
+    public TunedH2ProcessEngineConfiguration(String name) {
+        setProcessEngineName(name);
+        setJdbcUrl("jdbc:h2:mem:" + name + ";DB_CLOSE_DELAY=-1");
+        setDatabaseSchemaUpdate(ProcessEngineConfiguration.DB_SCHEMA_UPDATE_CREATE_DROP);
+        setCreateDiagramOnDeploy(false);
+        setIdBlockSize(ID_BLOCK_SIZE);
+        // as test-activiti.cfg.xml, timers need the job executor
+        setJobExecutorActivate(true);
+        setHistory(HistoryLevel.FULL.getKey());
+    }
+
+    /**
+     * @param name
+     *            Engine and database name.
+     * @return A rule for the engine of that name, built on first use.
+     */
+    public static ExtendedRule createRule(String name) {
+        return new ExtendedRule(getProcessEngine(name));
+    }
+
+    /**
+     * @param name
+     *            Engine and database name.
+     * @return The engine of that name, built on first use.
+     */
+    public static ProcessEngine getProcessEngine(String name) {
+        synchronized (engines) {
+            ProcessEngine processEngine = engines.get(name);
+            if (processEngine == null) {
+                processEngine = new TunedH2ProcessEngineConfiguration(name)
+                        .buildProcessEngine();
+                engines.put(name, processEngine);
+                if (!shutdownHookAdded) {
+                    Runtime.getRuntime().addShutdownHook(new Thread() {
+                        @Override
+                        public void run() {
+                            closeAll();
+                        }
+                    });
+                    shutdownHookAdded = true;
+                }
+            }
+            return processEngine;
+        }
+    }
+
+    /**
+     * Close the engine of that name, stopping its job executor and dropping
+     * its database. A later rule for the name builds a new engine.
+     *
+     * @param name
+     */
+    public static void close(String name) {
+        ProcessEngine processEngine;
+        synchronized (engines) {
+            processEngine = engines.remove(name);
+        }
+        if (processEngine != null) {
+            processEngine.close();
+        }
+    }
+
+    /**
+     * Close every engine built by this class.
+     */
+    public static void closeAll() {
+        List<String> names;
+        synchronized (engines) {
+            names = new ArrayList<String>(engines.keySet());
+        }
+        for (String name : names) {
+            close(name);
+        }
+    }
+}
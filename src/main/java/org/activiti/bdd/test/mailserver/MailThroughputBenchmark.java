@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.test.mailserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.activiti.engine.delegate.event.ActivitiEvent;
+import org.activiti.engine.delegate.event.ActivitiEventListener;
+import org.activiti.engine.delegate.event.ActivitiEventType;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.jobexecutor.DefaultJobExecutor;
+import org.activiti.engine.impl.jobexecutor.JobExecutor;
+import org.activiti.engine.test.ActivitiRule;
+
+/**
+ * Drives a number of mail sending process instances against a
+ * {@link TestMailServer} and reports the throughput achieved, how busy the job
+ * executor was and how many jobs had to be retried.
+ *
+ * <p>
+ * Combine with {@link TestMailServer#setAcceptLatency(long)},
+ * {@link TestMailServer#setDataLatency(long)} and
+ * {@link TestMailServer#setFailureRate(double)} to size the job executor
+ * against a slow or unreliable relay. The mail tasks of the process should be
+ * asynchronous so that they are sent by the job executor.
+ *
+ * @author Tim Stephenson
+ */
+public class MailThroughputBenchmark {
+
+    private static final long SAMPLE_INTERVAL_MILLIS = 50;
+
+    private final ActivitiRule activitiRule;
+
+    private final TestMailServer mailServer;
+
+    public MailThroughputBenchmark(ActivitiRule activitiRule,
+            TestMailServer mailServer) {
+        this.activitiRule = activitiRule;
+        this.mailServer = mailServer;
+    }
+
+    /**
+     * @param processDefinitionKey
+     *            Process sending exactly one mail per instance.
+     * @param vars
+     *            Variables to start each instance with.
+     * @param instances
+     *            Number of instances to start.
+     * @param timeoutMillis
+     *            Maximum milli-seconds to wait for all mails to arrive.
+     * @return Measurements of the run, also written to System.out.
+     * @throws AssertionError
+     *             If not all the mails arrive within the timeout.
+     */
+    public Result run(String processDefinitionKey, Map<String, Object> vars,
+            int instances, long timeoutMillis) throws Exception {
+        final Result result = new Result(instances);
+        ActivitiEventListener listener = new ActivitiEventListener() {
+            public void onEvent(ActivitiEvent event) {
+                switch (event.getType()) {
+                case JOB_EXECUTION_SUCCESS:
+                    result.jobSuccesses.incrementAndGet();
+                    break;
+                case JOB_EXECUTION_FAILURE:
+                    result.jobFailures.incrementAndGet();
+                    break;
+                case JOB_RETRIES_DECREMENTED:
+                    result.retriesDecremented.incrementAndGet();
+                    break;
+                default:
+                    break;
+                }
+            }
+
+            public boolean isFailOnException() {
+                return false;
+            }
+        };
+        activitiRule.getRuntimeService().addEventListener(listener,
+                ActivitiEventType.JOB_EXECUTION_SUCCESS,
+                ActivitiEventType.JOB_EXECUTION_FAILURE,
+                ActivitiEventType.JOB_RETRIES_DECREMENTED);
+
+        final ThreadPoolExecutor pool = getJobExecutorPool();
+        ScheduledExecutorService sampler = Executors
+                .newSingleThreadScheduledExecutor();
+        if (pool != null) {
+            result.maxPoolSize = pool.getMaximumPoolSize();
+            sampler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    result.sample(pool.getActiveCount(), pool.getQueue()
+                            .size());
+                }
+            }, 0, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        int alreadyReceived = mailServer.getWiser().getMessages().size();
+        int rejectedBefore = mailServer.getRejectedCount();
+        try {
+            mailServer.markJobExecutionStart();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < instances; i++) {
+                activitiRule.getRuntimeService().startProcessInstanceByKey(
+                        processDefinitionKey,
+                        new HashMap<String, Object>(vars));
+            }
+            result.startedMillis = System.currentTimeMillis() - start;
+
+            mailServer.awaitEmails(null, alreadyReceived + instances,
+                    timeoutMillis);
+            result.elapsedMillis = System.currentTimeMillis() - start;
+        } finally {
+            sampler.shutdownNow();
+            activitiRule.getRuntimeService().removeEventListener(listener);
+        }
+        result.mailsReceived = mailServer.getWiser().getMessages().size()
+                - alreadyReceived;
+        result.rejected = mailServer.getRejectedCount() - rejectedBefore;
+
+        System.out.println(result);
+        return result;
+    }
+
+    private ThreadPoolExecutor getJobExecutorPool() {
+        JobExecutor jobExecutor = ((ProcessEngineConfigurationImpl) activitiRule
+                .getProcessEngine().getProcessEngineConfiguration())
+                .getJobExecutor();
+        if (jobExecutor instanceof DefaultJobExecutor) {
+            return ((DefaultJobExecutor) jobExecutor).getThreadPoolExecutor();
+        }
+        return null;
+    }
+
+    /**
+     * Measurements of a single benchmark run.
+     */
+    public static class Result {
+        private final int instances;
+        private int mailsReceived;
+        private int rejected;
+        private long startedMillis;
+        private long elapsedMillis;
+        private int maxPoolSize = -1;
+        private int peakActiveThreads;
+        private int peakQueueSize;
+        private long activeThreadSamples;
+        private int samples;
+        private final AtomicInteger jobSuccesses = new AtomicInteger();
+        private final AtomicInteger jobFailures = new AtomicInteger();
+        private final AtomicInteger retriesDecremented = new AtomicInteger();
+
+        Result(int instances) {
+            this.instances = instances;
+        }
+
+        synchronized void sample(int activeThreads, int queueSize) {
+            samples++;
+            activeThreadSamples += activeThreads;
+            peakActiveThreads = Math.max(peakActiveThreads, activeThreads);
+            peakQueueSize = Math.max(peakQueueSize, queueSize);
+        }
+
+        public int getInstances() {
+            return instances;
+        }
+
+        public int getMailsReceived() {
+            return mailsReceived;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public double getMailsPerSecond() {
+            return elapsedMillis == 0 ? 0.0d : mailsReceived * 1000.0d
+                    / elapsedMillis;
+        }
+
+        /**
+         * @return Mean proportion (0.0 - 1.0) of the job executor's maximum
+         *         pool size that was busy, or -1 if the pool is not
+         *         observable.
+         */
+        public synchronized double getMeanSaturation() {
+            if (maxPoolSize <= 0 || samples == 0) {
+                return -1.0d;
+            }
+            return (double) activeThreadSamples / samples / maxPoolSize;
+        }
+
+        public synchronized int getPeakActiveThreads() {
+            return peakActiveThreads;
+        }
+
+        public synchronized int getPeakQueueSize() {
+            return peakQueueSize;
+        }
+
+        public int getRejected() {
+            return rejected;
+        }
+
+        public int getJobSuccesses() {
+            return jobSuccesses.get();
+        }
+
+        public int getJobFailures() {
+            return jobFailures.get();
+        }
+
+        public int getRetriesDecremented() {
+            return retriesDecremented.get();
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("*********** Mail throughput ***********")
+                    .append(System.getProperty("line.separator"));
+            sb.append(String.format(
+                    "  instances: %1$d (started in %2$d ms)%n", instances,
+                    startedMillis));
+            sb.append(String.format(
+                    "  mails received: %1$d in %2$d ms (%3$.1f/s)%n",
+                    mailsReceived, elapsedMillis, getMailsPerSecond()));
+            if (maxPoolSize > 0) {
+                sb.append(String.format(
+                        "  job executor: max pool %1$d, peak active %2$d, peak queue %3$d, mean saturation %4$.0f%%%n",
+                        maxPoolSize, peakActiveThreads, peakQueueSize,
+                        getMeanSaturation() * 100));
+            } else {
+                sb.append(String.format("  job executor: not observable%n"));
+            }
+            sb.append(String.format(
+                    "  jobs succeeded: %1$d, failed: %2$d, retries decremented: %3$d, recipients rejected: %4$d",
+                    jobSuccesses.get(), jobFailures.get(),
+                    retriesDecremented.get(), rejected));
+            return sb.toString();
+        }
+    }
+}
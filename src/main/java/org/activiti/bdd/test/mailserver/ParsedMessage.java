@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.test.mailserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A mail received by the {@link TestMailServer}, parsed once so that
+ * assertions and dumps do not need to re-render the MIME content.
+ *
+ * @author Tim Stephenson
+ */
+public class ParsedMessage {
+
+    private final String envelopeSender;
+
+    private final String envelopeReceiver;
+
+    private final String contentType;
+
+    private final String subject;
+
+    private final String from;
+
+    private final String to;
+
+    private final String cc;
+
+    private final String body;
+
+    private final List<String> textParts = new ArrayList<String>();
+
+    private final List<Attachment> attachments = new ArrayList<Attachment>();
+
+    ParsedMessage(String envelopeSender, String envelopeReceiver,
+            String contentType, String subject, String from, String to,
+            String cc, String body) {
+        this.envelopeSender = envelopeSender;
+        this.envelopeReceiver = envelopeReceiver;
+        this.contentType = contentType;
+        this.subject = subject;
+        this.from = from;
+        this.to = to;
+        this.cc = cc;
+        this.body = body;
+    }
+
+    void addTextPart(String text) {
+        textParts.add(text);
+    }
+
+    void addAttachment(Attachment attachment) {
+        attachments.add(attachment);
+    }
+
+    public String getEnvelopeSender() {
+        return envelopeSender;
+    }
+
+    public String getEnvelopeReceiver() {
+        return envelopeReceiver;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return Raw value of the Subject header, may be null.
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return Raw value of the From header, may be null.
+     */
+    public String getFrom() {
+        return from;
+    }
+
+    /**
+     * @return Raw value of the To header, may be null.
+     */
+    public String getTo() {
+        return to;
+    }
+
+    /**
+     * @return Raw value of the Cc header, may be null.
+     */
+    public String getCc() {
+        return cc;
+    }
+
+    /**
+     * @return The message content as written by its data handler, i.e. still
+     *         transfer encoded and including any multipart boundaries.
+     */
+    public String getBody() {
+        return body;
+    }
+
+    /**
+     * @return Decoded textual parts in the order they occur in the message.
+     */
+    public List<String> getTextParts() {
+        return Collections.unmodifiableList(textParts);
+    }
+
+    public List<Attachment> getAttachments() {
+        return Collections.unmodifiableList(attachments);
+    }
+
+    /**
+     * Metadata describing a non-textual or attached part of a message.
+     */
+    public static class Attachment {
+        private final String fileName;
+        private final String contentType;
+        private final int size;
+
+        Attachment(String fileName, String contentType, int size) {
+            this.fileName = fileName;
+            this.contentType = contentType;
+            this.size = size;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return Size in bytes of the (encoded) part or -1 if not known.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%1$s (%2$s, %3$d bytes)", fileName,
+                    contentType, size);
+        }
+    }
+}
@@ -2,79 +2,471 @@ package org.activiti.bdd.test.mailserver;
 
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.BindException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.activation.DataHandler;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
+import javax.mail.Part;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 
+import org.activiti.engine.ProcessEngineConfiguration;
+import org.activiti.engine.test.ActivitiRule;
 import org.junit.rules.ExternalResource;
+import org.subethamail.smtp.TooMuchDataException;
 import org.subethamail.wiser.Wiser;
 import org.subethamail.wiser.WiserMessage;
 
+/**
+ * JUnit rule running an in-process SMTP server to capture mail sent by
+ * processes.
+ *
+ * <p>
+ * By default the server listens on {@link #DEFAULT_PORT}. When constructed
+ * with a port of 0, or with the rule or configuration of the engine under test,
+ * it binds to a free ephemeral port instead so that several servers may run
+ * side by side, for example one per parallel test worker. In the latter case
+ * the chosen port is written to the engine's mail server configuration, so
+ * each worker must have its own engine.
+ *
+ * <p>
+ * When bound to an {@link ActivitiRule} that rule must be started first, for
+ * example:
+ *
+ * <pre>
+ * public ActivitiRule activitiRule = new ActivitiRule(&quot;test-activiti.cfg.xml&quot;);
+ * public TestMailServer mailServer = new TestMailServer(activitiRule);
+ * &#064;Rule
+ * public RuleChain chain = RuleChain.outerRule(activitiRule).around(mailServer);
+ * </pre>
+ */
 public class TestMailServer extends ExternalResource {
+	public static final int DEFAULT_PORT = 5025; // SMTP default is 25
+	public static final int MAX_BIND_ATTEMPTS = 10;
 	private static final List<String> EMPTY_LIST = Collections.emptyList();
-	protected Wiser wiser = new Wiser();
+	protected Wiser wiser = new ObservableWiser();
+	private final Map<WiserMessage, ParsedMessage> parsedMessages = Collections
+			.synchronizedMap(new IdentityHashMap<WiserMessage, ParsedMessage>());
+	private final Object deliveryMonitor = new Object();
+	private final List<Long> receivedTimes = new ArrayList<Long>();
+	private volatile long jobExecutionStart = -1;
+	private final Random random = new Random();
+	private volatile long acceptLatencyMillis;
+	private volatile long dataLatencyMillis;
+	private volatile double failureRate;
+	private final AtomicInteger rejectedCount = new AtomicInteger();
+	private final int requestedPort;
+	private int port;
+	private ActivitiRule activitiRule;
+	private ProcessEngineConfiguration processEngineConfiguration;
+
+	public TestMailServer() {
+		this(DEFAULT_PORT);
+	}
+
+	/**
+	 * @param port
+	 *            Port to listen on or 0 to pick a free ephemeral port.
+	 */
+	public TestMailServer(int port) {
+		this.requestedPort = port;
+	}
+
+	/**
+	 * @param activitiRule
+	 *            Rule whose engine will be configured to send mail to this
+	 *            server, listening on an ephemeral port.
+	 */
+	public TestMailServer(ActivitiRule activitiRule) {
+		this(0);
+		this.activitiRule = activitiRule;
+	}
+
+	/**
+	 * @param processEngineConfiguration
+	 *            Engine configuration to send mail to this server, listening
+	 *            on an ephemeral port.
+	 */
+	public TestMailServer(ProcessEngineConfiguration processEngineConfiguration) {
+		this(0);
+		this.processEngineConfiguration = processEngineConfiguration;
+	}
 
     @Override
     protected void before() throws Throwable {
         super.before();
-        wiser.setPort(5025); // Default is 25
-        wiser.start();
+        if (requestedPort == 0) {
+            startOnFreePort();
+        } else {
+            port = requestedPort;
+            wiser.setPort(port);
+            wiser.start();
+        }
+
+        if (activitiRule != null) {
+            if (activitiRule.getProcessEngine() == null) {
+                throw new IllegalStateException(
+                        "Process engine not yet started, ActivitiRule must be applied before TestMailServer");
+            }
+            configure(activitiRule.getProcessEngine()
+                    .getProcessEngineConfiguration());
+        } else if (processEngineConfiguration != null) {
+            configure(processEngineConfiguration);
+        }
+    }
+
+    /**
+     * Point the engine's mail configuration at this server.
+     *
+     * @param processEngineConfiguration
+     */
+    public void configure(ProcessEngineConfiguration processEngineConfiguration) {
+        processEngineConfiguration.setMailServerHost("localhost");
+        processEngineConfiguration.setMailServerPort(port);
+    }
+
+    /**
+     * @return The port this server is listening on once started.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Start on a free ephemeral port, trying another if some other server,
+     * such as a parallel worker's, binds the port first.
+     */
+    private void startOnFreePort() throws IOException {
+        for (int attempt = 1;; attempt++) {
+            port = findFreePort();
+            wiser.setPort(port);
+            try {
+                wiser.start();
+                return;
+            } catch (RuntimeException e) {
+                if (!isBindFailure(e) || attempt >= MAX_BIND_ATTEMPTS) {
+                    throw e;
+                }
+                // a server that failed to start cannot be started again
+                wiser = new ObservableWiser();
+            }
+        }
+    }
+
+    private static boolean isBindFailure(Throwable t) {
+        for (; t != null; t = t.getCause()) {
+            if (t instanceof BindException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected int findFreePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            socket.setReuseAddress(true);
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
     }
 
     @Override
     protected void after() {
         super.after();
         wiser.stop();
+        parsedMessages.clear();
+        synchronized (deliveryMonitor) {
+            receivedTimes.clear();
+        }
     }
 
     public Wiser getWiser() {
         return wiser;
     }
 
+    /**
+     * Wait for at least the specified number of messages to arrive.
+     *
+     * @param count
+     *            Number of messages expected.
+     * @param timeoutMillis
+     *            Maximum milli-seconds to wait.
+     * @return All messages received, as soon as there are enough of them.
+     */
+    public List<ParsedMessage> awaitEmails(int count, long timeoutMillis)
+            throws MessagingException, IOException, InterruptedException {
+        return awaitEmails(null, count, timeoutMillis);
+    }
+
+    /**
+     * Wait for at least the specified number of messages matching the filter
+     * to arrive.
+     *
+     * @param filter
+     *            Selects the messages to count, null to count all of them.
+     * @param count
+     *            Number of matching messages expected.
+     * @param timeoutMillis
+     *            Maximum milli-seconds to wait.
+     * @return The matching messages, as soon as there are enough of them.
+     */
+    public List<ParsedMessage> awaitEmails(MessageFilter filter, int count,
+            long timeoutMillis) throws MessagingException, IOException,
+            InterruptedException {
+        List<ParsedMessage> matches = waitForEmails(filter, count,
+                timeoutMillis);
+        assertTrue(String.format(
+                "Expected %1$d messages within %2$d ms but only %3$d arrived",
+                count, timeoutMillis, matches.size()), matches.size() >= count);
+        return matches;
+    }
+
+    /**
+     * As {@link #awaitEmails(MessageFilter, int, long)} but returns whatever
+     * has arrived when the timeout passes instead of failing.
+     */
+    public List<ParsedMessage> waitForEmails(MessageFilter filter, int count,
+            long timeoutMillis) throws MessagingException, IOException,
+            InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            List<WiserMessage> received;
+            synchronized (deliveryMonitor) {
+                received = new ArrayList<WiserMessage>(wiser.getMessages());
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            // parse outside the lock so as not to hold up deliveries
+            if (filter == null) {
+                // no need to parse anything just to count
+                if (received.size() >= count || remaining <= 0) {
+                    return getParsedMessages(received);
+                }
+            } else {
+                List<ParsedMessage> matches = new ArrayList<ParsedMessage>();
+                for (ParsedMessage message : getParsedMessages(received)) {
+                    if (filter.matches(message)) {
+                        matches.add(message);
+                    }
+                }
+                if (matches.size() >= count || remaining <= 0) {
+                    return matches;
+                }
+            }
+            synchronized (deliveryMonitor) {
+                if (wiser.getMessages().size() == received.size()) {
+                    deliveryMonitor.wait(remaining);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delay the server's response to each recipient (RCPT TO), simulating a
+     * slow relay.
+     *
+     * @param millis
+     */
+    public void setAcceptLatency(long millis) {
+        this.acceptLatencyMillis = millis;
+    }
+
+    /**
+     * Delay the server's response to the DATA phase of each message,
+     * simulating a slow relay.
+     *
+     * @param millis
+     */
+    public void setDataLatency(long millis) {
+        this.dataLatencyMillis = millis;
+    }
+
+    /**
+     * @param failureRate
+     *            Proportion (0.0 - 1.0) of recipients to reject, causing the
+     *            sending mail task to fail.
+     */
+    public void setFailureRate(double failureRate) {
+        if (failureRate < 0.0d || failureRate > 1.0d) {
+            throw new IllegalArgumentException(
+                    "Failure rate must be between 0.0 and 1.0");
+        }
+        this.failureRate = failureRate;
+    }
+
+    /**
+     * @return Number of recipients rejected due to the configured failure
+     *         rate.
+     */
+    public int getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private void pause(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Record the moment asynchronous mail jobs were released for execution,
+     * typically just before asking the engine to execute its jobs. Specs
+     * given this server by {@link org.activiti.bdd.ActivitiSpec#withMailServer(TestMailServer)}
+     * call this from their job execution steps.
+     *
+     * @see #getDeliveryLatencies()
+     */
+    public void markJobExecutionStart() {
+        jobExecutionStart = System.currentTimeMillis();
+    }
+
+    /**
+     * @return Milli-seconds from the last call to
+     *         {@link #markJobExecutionStart()} until the SMTP receipt of each
+     *         message that arrived after it, in order of arrival.
+     */
+    public List<Long> getDeliveryLatencies() {
+        List<Long> latencies = new ArrayList<Long>();
+        long start = jobExecutionStart;
+        if (start < 0) {
+            return latencies;
+        }
+        synchronized (deliveryMonitor) {
+            for (Long received : receivedTimes) {
+                if (received >= start) {
+                    latencies.add(received - start);
+                }
+            }
+        }
+        return latencies;
+    }
+
     public void dumpMailSent()
             throws MessagingException, IOException {
-        List<WiserMessage> messages = wiser.getMessages();
+        List<ParsedMessage> messages = getParsedMessages();
 		System.out.println(String.format(
 				"*********** Sent %1$s messages ***********", messages.size()));
+        for (ParsedMessage message : messages) {
+            System.out.println("  from: " + message.getEnvelopeSender());
+            System.out.println("  to: " + message.getEnvelopeReceiver());
+            System.out.println("  subject: " + message.getSubject());
+            List<String> textParts = message.getTextParts();
+            if (textParts.size() == 1 && message.getAttachments().isEmpty()) {
+                System.out.println("  content: " + textParts.get(0));
+            } else {
+                for (int i = 0; i < textParts.size(); i++) {
+                    System.out.println("  " + i + ": " + textParts.get(i));
+                }
+                for (ParsedMessage.Attachment attachment : message
+                        .getAttachments()) {
+                    System.out.println("  attachment: " + attachment);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The message at the specified index, parsed on first access only.
+     */
+    public ParsedMessage getParsedMessage(int idx) throws MessagingException,
+            IOException {
+        return getParsedMessage(wiser.getMessages().get(idx));
+    }
+
+    /**
+     * @return All messages received so far, each parsed on first access only.
+     */
+    public List<ParsedMessage> getParsedMessages() throws MessagingException,
+            IOException {
+        List<WiserMessage> messages;
+        synchronized (deliveryMonitor) {
+            messages = new ArrayList<WiserMessage>(wiser.getMessages());
+        }
+        return getParsedMessages(messages);
+    }
+
+    private List<ParsedMessage> getParsedMessages(List<WiserMessage> messages)
+            throws MessagingException, IOException {
+        List<ParsedMessage> list = new ArrayList<ParsedMessage>(
+                messages.size());
         for (WiserMessage wiserMessage : messages) {
-            System.out.println("  from: " + wiserMessage.getEnvelopeSender());
-            System.out.println("  to: " + wiserMessage.getEnvelopeReceiver());
-            System.out.println("  subject: "
-                    + wiserMessage.getMimeMessage().getSubject());
-            Object content = wiserMessage.getMimeMessage().getContent();
-			if (content instanceof String) {
-				System.out.println("  content: " + content);
-			} else {
-				dumpBodyPart(content);
-			}
+            list.add(getParsedMessage(wiserMessage));
+        }
+        return list;
+    }
+
+    protected ParsedMessage getParsedMessage(WiserMessage wiserMessage)
+            throws MessagingException, IOException {
+        ParsedMessage parsed = parsedMessages.get(wiserMessage);
+        if (parsed == null) {
+            // WiserMessage builds a new MimeMessage from raw bytes every call
+            parsed = parse(wiserMessage.getEnvelopeSender(),
+                    wiserMessage.getEnvelopeReceiver(),
+                    wiserMessage.getMimeMessage());
+            parsedMessages.put(wiserMessage, parsed);
         }
+        return parsed;
     }
 
-	private void dumpBodyPart(Object content) throws MessagingException,
-			IOException {
-		MimeMultipart mm = (MimeMultipart) content;
-		for (int i = 0; i < mm.getCount(); i++) {
-			BodyPart part = mm.getBodyPart(i);
-			if (part.getContent() instanceof MimeMultipart) {
-				dumpBodyPart(part.getContent());
-			} else {
-				System.out.println("  " + i + ": " + part.getContent());
+    protected ParsedMessage parse(String envelopeSender,
+            String envelopeReceiver, MimeMessage mimeMessage)
+            throws MessagingException, IOException {
+        ParsedMessage parsed = new ParsedMessage(envelopeSender,
+                envelopeReceiver, mimeMessage.getContentType(),
+                mimeMessage.getHeader("Subject", null),
+                mimeMessage.getHeader("From", null),
+                mimeMessage.getHeader("To", null),
+                mimeMessage.getHeader("Cc", null), getMessage(mimeMessage));
+        parseContent(mimeMessage.getContent(), parsed);
+        return parsed;
+    }
+
+	private void parseContent(Object content, ParsedMessage parsed)
+			throws MessagingException, IOException {
+		if (content instanceof String) {
+			parsed.addTextPart((String) content);
+		} else if (content instanceof MimeMultipart) {
+			MimeMultipart mm = (MimeMultipart) content;
+			for (int i = 0; i < mm.getCount(); i++) {
+				BodyPart part = mm.getBodyPart(i);
+				if (Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition())
+						|| part.getFileName() != null) {
+					parsed.addAttachment(new ParsedMessage.Attachment(part
+							.getFileName(), part.getContentType(), part
+							.getSize()));
+				} else {
+					parseContent(part.getContent(), parsed);
+				}
 			}
+		} else {
+			parsed.addAttachment(new ParsedMessage.Attachment(null,
+					content == null ? null : content.getClass().getName(), -1));
 		}
 	}
 
 	public void assertEmailSend(int idx, boolean htmlMail, String subject,
 			String txtMessage, String from, String to, String cc)
 			throws IOException, MessagingException {
-		assertEmailSend(wiser.getMessages().get(idx).getMimeMessage(),
+		assertEmailSend(getParsedMessage(idx),
 				htmlMail, subject, txtMessage, from,
 				Arrays.asList(new String[] { to }),
 				cc == null ? null : Arrays.asList(new String[] { cc }));
@@ -83,7 +475,7 @@ public class TestMailServer extends ExternalResource {
 	public void assertEmailSend(int idx, boolean htmlMail, String subject,
 			String txtMessage, String from, List<String> to, List<String> cc)
 			throws IOException, MessagingException {
-		assertEmailSend(wiser.getMessages().get(idx).getMimeMessage(),
+		assertEmailSend(getParsedMessage(idx),
 				htmlMail, subject, txtMessage, from, to, cc);
 	}
 
@@ -97,31 +489,38 @@ public class TestMailServer extends ExternalResource {
 	protected void assertEmailSend(MimeMessage mimeMessage, boolean htmlMail,
             String subject, String txtMessage, String from, List<String> to,
 			List<String> cc) throws IOException, MessagingException {
+		assertEmailSend(parse(null, null, mimeMessage), htmlMail, subject,
+				txtMessage, from, to, cc);
+	}
+
+	protected void assertEmailSend(ParsedMessage message, boolean htmlMail,
+            String subject, String txtMessage, String from, List<String> to,
+			List<String> cc) {
 		if (htmlMail) {
-			assertTrue(mimeMessage.getContentType().contains("multipart/mixed"));
+			assertTrue(message.getContentType().contains("multipart/mixed"));
 		} else {
-			assertTrue(mimeMessage.getContentType().contains("text/plain"));
+			assertTrue(message.getContentType().contains("text/plain"));
 		}
 
         assertTrue(
                 String.format(
                         "Message does not have expected subject. Expected: %1$s, received: %2$s",
-                        subject, mimeMessage.getHeader("Subject", null)),
-				mimeMessage.getHeader("Subject", null).contains(subject));
+                        subject, message.getSubject()),
+				message.getSubject().contains(subject));
 		// Test from is either long or short form of sender
 		String longFrom = "\"" + from + "\" <" + from.toString() + ">";
         assertTrue(
                 String.format(
                         "Message not from the expected sender, expected: %1$s but was: %2$s",
-                        from, mimeMessage.getHeader("From", null)),
-				longFrom.equals(mimeMessage.getHeader("From", null))
-				|| from.equals(mimeMessage.getHeader("From", null)));
-		System.out.println("Msg body: " + getMessage(mimeMessage));
+                        from, message.getFrom()),
+				longFrom.equals(message.getFrom())
+				|| from.equals(message.getFrom()));
+		System.out.println("Msg body: " + message.getBody());
         assertTrue(
                 String.format(
                         "Message does not contain expected content: %1$s, received: %2$s",
-                        txtMessage, getMessage(mimeMessage)),
-                getMessage(mimeMessage).contains(txtMessage));
+                        txtMessage, message.getBody()),
+                message.getBody().contains(txtMessage));
 
         if (to == null) {
             System.out.println("No assertion on addressees");
@@ -129,15 +528,15 @@ public class TestMailServer extends ExternalResource {
             for (String t : to) {
                 assertTrue(String.format(
                         "Message does not contain expected recipient, expected: %1$s, received: %2$s",
-                        t, mimeMessage.getHeader("To", null)),
-    					mimeMessage.getHeader("To", null).contains(t));
+                        t, message.getTo()),
+    					message.getTo().contains(t));
     		}
         }
 
 		if (cc != null) {
 			for (String c : cc) {
                 assertTrue("Message does not contain expected cc recipient: "
-                        + c, mimeMessage.getHeader("Cc", null).contains(c));
+                        + c, message.getCc().contains(c));
             }
         }
     }
@@ -151,4 +550,46 @@ public class TestMailServer extends ExternalResource {
         String msg = baos.toString();
         return msg;
     }
+
+    /**
+     * Selects the messages to wait for.
+     */
+    public interface MessageFilter {
+        boolean matches(ParsedMessage message);
+    }
+
+    /**
+     * Wiser that records when each message arrives and wakes up anyone
+     * waiting for it, optionally behaving like a slow or unreliable relay.
+     */
+    protected class ObservableWiser extends Wiser {
+        @Override
+        public boolean accept(String from, String recipient) {
+            pause(acceptLatencyMillis);
+            if (failureRate > 0.0d && random.nextDouble() < failureRate) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+            return super.accept(from, recipient);
+        }
+
+        @Override
+        public void deliver(String from, String recipient, InputStream data)
+                throws TooMuchDataException, IOException {
+            pause(dataLatencyMillis);
+            // read outside the lock so concurrent deliveries do not queue
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = data.read(buf)) != -1) {
+                baos.write(buf, 0, len);
+            }
+            synchronized (deliveryMonitor) {
+                super.deliver(from, recipient,
+                        new ByteArrayInputStream(baos.toByteArray()));
+                receivedTimes.add(System.currentTimeMillis());
+                deliveryMonitor.notifyAll();
+            }
+        }
+    }
 }
@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+
+import org.activiti.engine.RepositoryService;
+import org.activiti.engine.runtime.ProcessInstance;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Resolution and invalidation of {@link ProcessDefinitionCache} and its use
+ * by bulk starts.
+ *
+ * @author Tim Stephenson
+ */
+public class ProcessDefinitionCacheTest {
+
+    private static final String EXAMPLE1_KEY = "Example1";
+
+    @Rule
+    public ActivitiRule activitiRule = new ActivitiRule("test-activiti.cfg.xml");
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testNewVersionResolvedOnceCommitted() throws Exception {
+        ProcessDefinitionCache cache = ProcessDefinitionCache
+                .forEngine(activitiRule.getProcessEngine());
+        String v1 = cache.resolveByKey(EXAMPLE1_KEY, null);
+        assertEquals(latestId(), v1);
+        assertNull(cache.resolveByKey("NoSuchProcess", null));
+
+        String deploymentId = deployExample1();
+        try {
+            String v2 = cache.resolveByKey(EXAMPLE1_KEY, null);
+            assertFalse(v1.equals(v2));
+            assertEquals(latestId(), v2);
+        } finally {
+            activitiRule.getRepositoryService().deleteDeployment(deploymentId,
+                    true);
+        }
+        // deleting the new version reverts to the old one
+        assertEquals(v1, cache.resolveByKey(EXAMPLE1_KEY, null));
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testBatchStartsLatestResolvedVersion() throws Exception {
+        ActivitiBatchSpec spec = new ActivitiBatchSpec(activitiRule,
+                "testBatchStartsLatestResolvedVersion").whenEventsOccur(
+                "3 Example1 processes are started", EXAMPLE1_KEY, 3,
+                new HashMap<String, Object>(), null);
+        assertAllStartedFrom(spec, latestId());
+
+        String deploymentId = deployExample1();
+        try {
+            spec = new ActivitiBatchSpec(activitiRule,
+                    "testBatchStartsLatestResolvedVersion v2")
+                    .whenEventsOccur("3 more Example1 processes are started",
+                            EXAMPLE1_KEY, 3, new HashMap<String, Object>(),
+                            null);
+            assertAllStartedFrom(spec, latestId());
+        } finally {
+            activitiRule.getRepositoryService().deleteDeployment(deploymentId,
+                    true);
+        }
+    }
+
+    private void assertAllStartedFrom(ActivitiBatchSpec spec,
+            String definitionId) {
+        assertEquals(3, spec.getProcessInstanceIds().size());
+        for (String piid : spec.getProcessInstanceIds()) {
+            ProcessInstance pi = activitiRule.getRuntimeService()
+                    .createProcessInstanceQuery().processInstanceId(piid)
+                    .singleResult();
+            assertEquals(definitionId, pi.getProcessDefinitionId());
+        }
+    }
+
+    private String deployExample1() {
+        RepositoryService repositoryService = activitiRule
+                .getRepositoryService();
+        return repositoryService.createDeployment()
+                .addClasspathResource("processes/Example1.bpmn").deploy()
+                .getId();
+    }
+
+    private String latestId() {
+        return activitiRule.getRepositoryService()
+                .createProcessDefinitionQuery()
+                .processDefinitionKey(EXAMPLE1_KEY).latestVersion()
+                .singleResult().getId();
+    }
+}
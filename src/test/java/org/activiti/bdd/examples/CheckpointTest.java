@@ -0,0 +1,143 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package org.activiti.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.bdd.ExternalAction;
+import org.activiti.bdd.test.activiti.DatabaseSnapshot;
+import org.activiti.engine.repository.Deployment;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Branching scenarios from a checkpoint.
+ *
+ * @author Tim Stephenson
+ */
+public class CheckpointTest {
+
+    private static final String EXAMPLE1_KEY = "Example1";
+
+    private static final String CHECKPOINT = "Example1 waiting at doSomething";
+
+    @Rule
+    public ActivitiRule activitiRule = new ActivitiRule("test-activiti.cfg.xml");
+
+    @Before
+    public void setUp() {
+        // checkpoints hold the deployment so it cannot be left to @Deployment
+        activitiRule.getRepositoryService().createDeployment()
+                .addClasspathResource("processes/Example1.bpmn").deploy();
+    }
+
+    @After
+    public void tearDown() {
+        DatabaseSnapshot.discard(activitiRule.getProcessEngine(),
+                "checkpoint:" + CHECKPOINT);
+        for (Deployment deployment : activitiRule.getRepositoryService()
+                .createDeploymentQuery().list()) {
+            activitiRule.getRepositoryService().deleteDeployment(
+                    deployment.getId(), true);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBranchesStartFromCheckpoint() throws Exception {
+        ActivitiSpec spec = new ActivitiSpec(activitiRule,
+                "testBranchesStartFromCheckpoint")
+                .whenEventOccurs("The Example1 process is started",
+                        EXAMPLE1_KEY, ActivitiSpec.buildSet(),
+                        ActivitiSpec.buildMap(), null).checkpoint(CHECKPOINT);
+        assertTrue(spec.hasCheckpoint(CHECKPOINT));
+        assertFalse(spec.hasCheckpoint("never taken"));
+        final String piid = spec.getProcessInstance().getId();
+
+        Map<String, ExternalAction> branches = new LinkedHashMap<String, ExternalAction>();
+        branches.put("complete", new ExternalAction() {
+            @Override
+            public void execute(ActivitiSpec fork) throws Exception {
+                assertEquals(piid, fork.getProcessInstance().getId());
+                fork.thenUserTask("doSomething", ActivitiSpec.buildSet(),
+                        ActivitiSpec.buildMap()).thenProcessIsComplete();
+            }
+        });
+        branches.put("still waiting", new ExternalAction() {
+            @Override
+            public void execute(ActivitiSpec fork) throws Exception {
+                // the first branch completed the process in its own copy
+                assertEquals(1, activitiRule.getTaskService()
+                        .createTaskQuery().processInstanceId(piid)
+                        .taskDefinitionKey("doSomething").count());
+            }
+        });
+        spec.forEachBranch(CHECKPOINT, branches);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testBranchFailuresReportedTogether() throws Exception {
+        ActivitiSpec spec = new ActivitiSpec(activitiRule,
+                "testBranchFailuresReportedTogether")
+                .whenEventOccurs("The Example1 process is started",
+                        EXAMPLE1_KEY, ActivitiSpec.buildSet(),
+                        ActivitiSpec.buildMap(), null).checkpoint(CHECKPOINT);
+
+        final int[] runs = new int[1];
+        Map<String, ExternalAction> branches = new LinkedHashMap<String, ExternalAction>();
+        branches.put("fails", new ExternalAction() {
+            @Override
+            public void execute(ActivitiSpec fork) throws Exception {
+                runs[0]++;
+                fork.thenProcessIsComplete();
+            }
+        });
+        branches.put("passes", new ExternalAction() {
+            @Override
+            public void execute(ActivitiSpec fork) throws Exception {
+                runs[0]++;
+            }
+        });
+        try {
+            spec.forEachBranch(CHECKPOINT, branches);
+            fail("Expected the failing branch to be reported");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(),
+                    e.getMessage().startsWith("1 of 2 branches failed:"));
+            assertTrue(e.getMessage(), e.getMessage().contains("fails: "));
+        }
+        assertEquals(2, runs[0]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testForkWithoutCheckpoint() throws Exception {
+        new ActivitiSpec(activitiRule, "testForkWithoutCheckpoint").fork(
+                "never taken", "any");
+    }
+}
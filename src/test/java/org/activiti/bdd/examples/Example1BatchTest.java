@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package org.activiti.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.activiti.bdd.ActivitiBatchSpec;
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.engine.task.Task;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Example specification driving a cohort of processes using Activiti BDD.
+ *
+ * @author Tim Stephenson
+ */
+public class Example1BatchTest {
+
+    private static final String EXAMPLE1_KEY = "Example1";
+
+    @Rule
+    public ActivitiRule activitiRule = new ActivitiRule("test-activiti.cfg.xml");
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testExample1Cohort() throws Exception {
+        ActivitiBatchSpec spec = new ActivitiBatchSpec(activitiRule,
+                "testExample1Cohort")
+                .given("No particular pre-conditions")
+                .usingThreads(2)
+                .inTransactionsOf(5)
+                .whenEventsOccur("22 Example1 processes are started",
+                        EXAMPLE1_KEY, 22, ActivitiSpec.buildMap(), null)
+                .thenAllWaitingAt("doSomething");
+
+        assertEquals(22, spec.getProcessInstanceIds().size());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testOnlyCohortChecked() throws Exception {
+        // another scenario's processes waiting on the same engine
+        for (int i = 0; i < 3; i++) {
+            activitiRule.getRuntimeService().startProcessInstanceByKey(
+                    EXAMPLE1_KEY);
+        }
+        ActivitiBatchSpec spec = new ActivitiBatchSpec(activitiRule,
+                "testOnlyCohortChecked").whenEventsOccur(
+                "4 Example1 processes are started", EXAMPLE1_KEY, 4,
+                ActivitiSpec.buildMap(), null).thenAllWaitingAt("doSomething");
+
+        Task task = activitiRule.getTaskService().createTaskQuery()
+                .processInstanceId(spec.getProcessInstanceIds().get(0))
+                .singleResult();
+        activitiRule.getTaskService().complete(task.getId());
+        try {
+            spec.thenAllWaitingAt("doSomething");
+            fail("Expected the completed process not to be waiting");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(
+                    "Only 3 of 4 processes waiting at 'doSomething'"));
+        }
+    }
+
+}
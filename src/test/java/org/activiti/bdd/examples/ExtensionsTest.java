@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package org.activiti.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.bdd.ExternalAction;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Example specification running extension actions concurrently.
+ *
+ * @author Tim Stephenson
+ */
+public class ExtensionsTest {
+
+    @Rule
+    public ActivitiRule activitiRule = new ActivitiRule("test-activiti.cfg.xml");
+
+    @Test
+    public void testExtensionsRunConcurrently() throws Exception {
+        // each action only completes once both have started
+        final CountDownLatch started = new CountDownLatch(2);
+        ExternalAction rendezvous = new ExternalAction() {
+            public void execute(ActivitiSpec activitiSpec) throws Exception {
+                started.countDown();
+                if (!started.await(5, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Not run concurrently");
+                }
+            }
+        };
+
+        ActivitiSpec spec = new ActivitiSpec(activitiRule,
+                "testExtensionsRunConcurrently").given(
+                "No particular pre-conditions").thenExtensions(rendezvous,
+                rendezvous);
+
+        Map<String, Long> durations = spec.getExtensionDurations();
+        String name = rendezvous.getClass().getName();
+        assertEquals(Arrays.asList(name, name + "[2]"),
+                Arrays.asList(durations.keySet().toArray()));
+    }
+
+    @Test
+    public void testFailuresReportedTogether() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        ExternalAction pass = new CountingAction(runs, null);
+        ExternalAction fail1 = new CountingAction(runs, "first failure");
+        ExternalAction fail2 = new CountingAction(runs, "second failure");
+
+        ActivitiSpec spec = new ActivitiSpec(activitiRule,
+                "testFailuresReportedTogether");
+        try {
+            spec.thenExtensions(fail1, pass, fail2);
+            fail("Failures not reported");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(),
+                    e.getMessage().startsWith("2 of 3 extensions failed:"));
+            assertTrue(e.getMessage(), e.getMessage().contains("first failure"));
+            assertTrue(e.getMessage(), e.getMessage().contains("second failure"));
+            assertEquals("first failure", e.getCause().getMessage());
+        }
+        // a failure does not stop the other actions
+        assertEquals(3, runs.get());
+        assertEquals(1, spec.getExtensionDurations().size());
+    }
+
+    private static class CountingAction implements ExternalAction {
+        private final AtomicInteger runs;
+        private final String failure;
+
+        CountingAction(AtomicInteger runs, String failure) {
+            this.runs = runs;
+            this.failure = failure;
+        }
+
+        public void execute(ActivitiSpec activitiSpec) throws Exception {
+            runs.incrementAndGet();
+            if (failure != null) {
+                throw new IllegalStateException(failure);
+            }
+        }
+    }
+}
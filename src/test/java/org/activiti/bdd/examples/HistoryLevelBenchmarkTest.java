@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package org.activiti.bdd.examples;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.bdd.test.activiti.ExtendedRule;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.history.HistoryLevel;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Compares the number of history rows written by the Example1 scenario at
+ * each history level.
+ *
+ * @author Tim Stephenson
+ */
+public class HistoryLevelBenchmarkTest {
+
+    private static final String EXAMPLE1_KEY = "Example1";
+
+    private static final int RUNS = 10;
+
+    @Rule
+    public ExtendedRule activitiRule = new ExtendedRule("test-activiti.cfg.xml");
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testHistoryWriteVolume() throws Exception {
+        ProcessEngineConfigurationImpl config = (ProcessEngineConfigurationImpl) activitiRule
+                .getProcessEngine().getProcessEngineConfiguration();
+        HistoryLevel originalLevel = config.getHistoryLevel();
+        try {
+            long none = countRowsWritten(HistoryLevel.NONE);
+            long activity = countRowsWritten(HistoryLevel.ACTIVITY);
+            long audit = countRowsWritten(HistoryLevel.AUDIT);
+            long full = countRowsWritten(HistoryLevel.FULL);
+
+            assertTrue(none <= activity);
+            assertTrue(activity <= audit);
+            assertTrue(audit <= full);
+        } finally {
+            config.setHistoryLevel(originalLevel);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private long countRowsWritten(HistoryLevel level) throws Exception {
+        long before = total(activitiRule.getHistoryRowCounts());
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < RUNS; i++) {
+            new ActivitiSpec(activitiRule, "testHistoryWriteVolume")
+                    .withHistoryLevel(level)
+                    .whenEventOccurs("The Example1 process is started",
+                            EXAMPLE1_KEY, ActivitiSpec.buildSet(),
+                            ActivitiSpec.buildMap(
+                                    ActivitiSpec.newPair("foo", "bar")), null)
+                    .whenUserTaskCompleted("doSomething",
+                            ActivitiSpec.buildSet(), ActivitiSpec.buildMap());
+        }
+        long rows = total(activitiRule.getHistoryRowCounts()) - before;
+        System.out.println(String.format(
+                "History level '%1$s': %2$d rows in %3$d ms for %4$d runs",
+                level.getKey(), rows, System.currentTimeMillis() - start,
+                RUNS));
+        return rows;
+    }
+
+    private long total(Map<String, Long> counts) {
+        long total = 0;
+        for (Long count : counts.values()) {
+            total += count;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package org.activiti.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.bdd.HistoryStep;
+import org.activiti.bdd.test.activiti.ExtendedRule;
+import org.activiti.engine.impl.cfg.ProcessEngineConfigurationImpl;
+import org.activiti.engine.impl.history.HistoryLevel;
+import org.activiti.engine.task.Task;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * History levels chosen for and checked by the steps of a scenario.
+ *
+ * @author Tim Stephenson
+ */
+public class HistoryRequirementsTest {
+
+    private static final String EXAMPLE1_KEY = "Example1";
+
+    @Rule
+    public ExtendedRule activitiRule = new ExtendedRule("test-activiti.cfg.xml");
+
+    @Test
+    public void testLowestLevelSupportingSteps() {
+        ActivitiSpec spec = new ActivitiSpec(activitiRule,
+                "testLowestLevelSupportingSteps");
+
+        spec.withHistoryFor();
+        assertEquals(HistoryLevel.NONE, getHistoryLevel());
+        spec.withHistoryFor(HistoryStep.THEN_VARIABLE_EQUALS,
+                HistoryStep.THEN_SERVICE_TASK);
+        assertEquals(HistoryLevel.AUDIT, getHistoryLevel());
+        spec.withHistoryFor(HistoryStep.THEN_USER_TASK,
+                HistoryStep.DUMP_AUDIT_TRAIL);
+        assertEquals(HistoryLevel.FULL, getHistoryLevel());
+    }
+
+    @Test
+    public void testStepFailsBelowRequiredLevel() {
+        ActivitiSpec spec = new ActivitiSpec(activitiRule,
+                "testStepFailsBelowRequiredLevel")
+                .withHistoryFor(HistoryStep.THEN_USER_TASK);
+        try {
+            spec.requireHistory(HistoryStep.THEN_SERVICE_TASK);
+            fail("Expected activity history to be too low for a service task");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(),
+                    e.getMessage().contains("THEN_SERVICE_TASK"));
+        }
+        spec.requireHistory(HistoryStep.THEN_VARIABLE_EQUALS);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testEndedVariablePrefersProcessInstanceScope()
+            throws Exception {
+        ActivitiSpec spec = new ActivitiSpec(activitiRule,
+                "testEndedVariablePrefersProcessInstanceScope")
+                .withHistoryFor(HistoryStep.THEN_VARIABLE_EQUALS)
+                .whenEventOccurs("The Example1 process is started",
+                        EXAMPLE1_KEY, ActivitiSpec.buildSet(),
+                        ActivitiSpec.buildMap(
+                                ActivitiSpec.newPair("foo", "bar")), null);
+        // a task local value of the same name is also kept in history
+        Task task = activitiRule.getTaskService().createTaskQuery()
+                .processInstanceId(spec.getProcessInstance().getId())
+                .singleResult();
+        activitiRule.getTaskService().setVariableLocal(task.getId(), "foo",
+                "baz");
+
+        spec.whenUserTaskCompleted("doSomething", ActivitiSpec.buildSet(),
+                ActivitiSpec.buildMap()).thenProcessIsComplete()
+                .thenVariableEquals("foo", "bar");
+    }
+
+    private HistoryLevel getHistoryLevel() {
+        return ((ProcessEngineConfigurationImpl) activitiRule
+                .getProcessEngine().getProcessEngineConfiguration())
+                .getHistoryLevel();
+    }
+}
@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package org.activiti.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.bdd.test.activiti.IdentityFixtureLoader;
+import org.activiti.engine.IdentityService;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Example specification loading an identity fixture using Activiti BDD.
+ *
+ * @author Tim Stephenson
+ */
+public class IdentityFixtureTest {
+
+    private static final String FIXTURE = "/identities/example-identities.txt";
+
+    @Rule
+    public ActivitiRule activitiRule = new ActivitiRule("test-activiti.cfg.xml");
+
+    @Test
+    public void testLoadIdentityFixture() throws Exception {
+        IdentityFixtureLoader loader = new IdentityFixtureLoader(
+                activitiRule.getProcessEngine()).batchSize(2).read(FIXTURE);
+        assertEquals(2, loader.getGroupCount());
+        assertEquals(3, loader.getUserCount());
+        assertEquals(3, loader.getMembershipCount());
+        assertEquals(8, loader.load());
+
+        new ActivitiSpec(activitiRule, "testLoadIdentityFixture")
+                .thenUsersExist(Arrays.asList("alice", "bob", "carol"),
+                        "reviewers", "approvers")
+                .thenUserExists("bob", "reviewers");
+
+        IdentityService identityService = activitiRule.getIdentityService();
+        assertEquals(2, identityService.createUserQuery()
+                .memberOfGroup("reviewers").count());
+        assertEquals("alice@example.com", identityService.createUserQuery()
+                .userId("alice").singleResult().getEmail());
+    }
+
+    @Test
+    public void testMissingUserReported() throws Exception {
+        new IdentityFixtureLoader(activitiRule.getProcessEngine()).read(
+                FIXTURE).load();
+        try {
+            new ActivitiSpec(activitiRule, "testMissingUserReported")
+                    .thenUsersExist(Arrays.asList("alice", "dave"),
+                            "reviewers");
+            fail("Missing user 'dave' not reported");
+        } catch (AssertionError e) {
+            assertEquals("Missing users [dave] and groups []", e.getMessage());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        // the in-memory database outlives each test
+        IdentityService identityService = activitiRule.getIdentityService();
+        for (String userId : Arrays.asList("alice", "bob", "carol")) {
+            identityService.deleteUser(userId);
+        }
+        for (String groupId : Arrays.asList("reviewers", "approvers")) {
+            identityService.deleteGroup(groupId);
+        }
+    }
+
+}
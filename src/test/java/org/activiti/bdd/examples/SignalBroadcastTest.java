@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package org.activiti.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Broadcasting signals to the process instances of one tenant or of none.
+ *
+ * @author Tim Stephenson
+ */
+public class SignalBroadcastTest {
+
+    private static final String SIGNAL_CATCH_KEY = "SignalCatch";
+
+    private static final String TENANT_ID = "acme";
+
+    @Rule
+    public ActivitiRule activitiRule = new ActivitiRule("test-activiti.cfg.xml");
+
+    private String tenantDeploymentId;
+
+    @Before
+    public void setUp() {
+        tenantDeploymentId = activitiRule.getRepositoryService()
+                .createDeployment()
+                .addClasspathResource("processes/SignalCatch.bpmn")
+                .tenantId(TENANT_ID).deploy().getId();
+    }
+
+    @After
+    public void tearDown() {
+        activitiRule.getRepositoryService().deleteDeployment(
+                tenantDeploymentId, true);
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/SignalCatch.bpmn" })
+    public void testBroadcastWithoutTenant() {
+        RuntimeService runtimeService = activitiRule.getRuntimeService();
+        runtimeService.startProcessInstanceByKey(SIGNAL_CATCH_KEY);
+        runtimeService.startProcessInstanceByKey(SIGNAL_CATCH_KEY);
+        runtimeService.startProcessInstanceByKeyAndTenantId(SIGNAL_CATCH_KEY,
+                TENANT_ID);
+
+        new ActivitiSpec(activitiRule, "testBroadcastWithoutTenant")
+                .whenSignalBroadcast("go is broadcast", "go", null, 1000);
+
+        assertEquals(2, activitiRule.getTaskService().createTaskQuery()
+                .taskDefinitionKey("afterSignal").count());
+        assertEquals(1, waitingFor("go", TENANT_ID));
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/SignalCatch.bpmn" })
+    public void testBroadcastToTenant() {
+        RuntimeService runtimeService = activitiRule.getRuntimeService();
+        runtimeService.startProcessInstanceByKey(SIGNAL_CATCH_KEY);
+        runtimeService.startProcessInstanceByKeyAndTenantId(SIGNAL_CATCH_KEY,
+                TENANT_ID);
+
+        new ActivitiSpec(activitiRule, "testBroadcastToTenant")
+                .whenSignalBroadcast("go is broadcast to acme", "go",
+                        TENANT_ID, 1000);
+
+        assertEquals(0, waitingFor("go", TENANT_ID));
+        assertEquals(1, runtimeService.createExecutionQuery()
+                .signalEventSubscriptionName("go").executionWithoutTenantId()
+                .count());
+    }
+
+    @Test
+    public void testNoInstanceOfNoTenantWaiting() {
+        activitiRule.getRuntimeService().startProcessInstanceByKeyAndTenantId(
+                SIGNAL_CATCH_KEY, TENANT_ID);
+        try {
+            // the broadcast would not reach the tenant's instance
+            new ActivitiSpec(activitiRule, "testNoInstanceOfNoTenantWaiting")
+                    .whenSignalBroadcast("go is broadcast", "go", null, 1000);
+            fail("Expected no process without a tenant to be waiting");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(
+                    "No process waiting for signal 'go'"));
+        }
+        assertEquals(1, waitingFor("go", TENANT_ID));
+    }
+
+    private long waitingFor(String signalName, String tenantId) {
+        return activitiRule.getRuntimeService().createExecutionQuery()
+                .signalEventSubscriptionName(signalName)
+                .executionTenantId(tenantId).count();
+    }
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package org.activiti.bdd.examples;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.bdd.ExternalAction;
+import org.activiti.bdd.StepUsage;
+import org.activiti.bdd.test.activiti.ExtendedRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Latency and command budgets of individual steps and engine time budgets
+ * of whole processes.
+ *
+ * @author Tim Stephenson
+ */
+public class StepBudgetTest {
+
+    private static final String EXAMPLE1_KEY = "Example1";
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Rule
+    public ExtendedRule activitiRule = new ExtendedRule("test-activiti.cfg.xml");
+
+    @Test
+    public void testStepLatency() throws Exception {
+        ActivitiSpec spec = new ActivitiSpec(activitiRule, "testStepLatency")
+                .thenExtension(new ExternalAction() {
+                    public void execute(ActivitiSpec activitiSpec)
+                            throws Exception {
+                        Thread.sleep(50);
+                    }
+                }).thenStepLatencyBelow(HOUR);
+        try {
+            // still checks the sleeping step, not the previous check
+            spec.thenStepLatencyBelow(50);
+            fail("Expected the step to exceed its budget");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(
+                    "more than the budget of 50 ms"));
+        }
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testStepCommands() throws Exception {
+        activitiRule.installCommandProfiler();
+        try {
+            ActivitiSpec spec = new ActivitiSpec(activitiRule,
+                    "testStepCommands").thenExtension(new ExternalAction() {
+                public void execute(ActivitiSpec activitiSpec)
+                        throws Exception {
+                    for (int i = 0; i < 5; i++) {
+                        activitiRule.getRuntimeService()
+                                .createProcessInstanceQuery().count();
+                    }
+                }
+            }).thenStepCommandsBelow(6).thenStepLatencyBelow(HOUR);
+            try {
+                spec.thenStepCommandsBelow(5);
+                fail("Expected the step to exceed its budget");
+            } catch (AssertionError e) {
+                assertTrue(e.getMessage(), e.getMessage().contains(
+                        "issued 5 commands, more than the budget of 5"));
+            }
+        } finally {
+            activitiRule.uninstallCommandProfiler();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStepCommandsNeedProfiler() throws Exception {
+        new ActivitiSpec(activitiRule, "testStepCommandsNeedProfiler").given(
+                "No command profiler").thenStepCommandsBelow(100);
+    }
+
+    @SuppressWarnings({ "unchecked", "deprecation" })
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testStepUsageAttribution() throws Exception {
+        ActivitiSpec spec = new ActivitiSpec(activitiRule,
+                "testStepUsageAttribution").given("An Example1 process")
+                .whenEventOccurs("The Example1 process is started",
+                        EXAMPLE1_KEY, ActivitiSpec.buildSet(),
+                        ActivitiSpec.buildMap(), null)
+                .thenUserTask("doSomething", ActivitiSpec.buildSet(),
+                        ActivitiSpec.buildMap())
+                .thenExtension(new ExternalAction() {
+                    public void execute(ActivitiSpec activitiSpec)
+                            throws Exception {
+                        activitiSpec.thenProcessIsComplete();
+                    }
+                });
+
+        // composed steps are charged with only their own phrases
+        assertEquals(Arrays.asList("given", "whenEventOccurs", "thenUserTask",
+                "whenUserTaskCompleted", "thenProcessIsComplete",
+                "thenExtension"), new ArrayList<String>(spec.getStepUsage()
+                .keySet()));
+        for (StepUsage usage : spec.getStepUsage().values()) {
+            assertEquals(1, usage.getCount());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testCompletedWithinEngineTime() throws Exception {
+        Date start = new Date();
+        activitiRule.setCurrentTime(start);
+        ActivitiSpec spec = new ActivitiSpec(activitiRule,
+                "testCompletedWithinEngineTime").whenEventOccurs(
+                "The Example1 process is started", EXAMPLE1_KEY,
+                ActivitiSpec.buildSet(), ActivitiSpec.buildMap(), null);
+        // the task takes two hours of engine time
+        activitiRule.setCurrentTime(new Date(start.getTime() + 2 * HOUR));
+        spec.whenUserTaskCompleted("doSomething", ActivitiSpec.buildSet(),
+                ActivitiSpec.buildMap()).thenCompletedWithin(3 * HOUR);
+        try {
+            spec.thenCompletedWithin(HOUR);
+            fail("Expected the process to exceed its budget");
+        } catch (AssertionError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(
+                    "Process took " + 2 * HOUR + " ms"));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ * 
+ *******************************************************************************/
+package org.activiti.bdd.examples;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.engine.task.Task;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Checking many process variables at once.
+ *
+ * @author Tim Stephenson
+ */
+public class VariableAssertionsTest {
+
+    private static final String EXAMPLE1_KEY = "Example1";
+
+    @Rule
+    public ActivitiRule activitiRule = new ActivitiRule("test-activiti.cfg.xml");
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testMismatchesReportedTogether() throws Exception {
+        CheckingSpec spec = start("testMismatchesReportedTogether");
+        String piid = spec.getProcessInstance().getId();
+
+        spec.check(ActivitiSpec.buildMap(ActivitiSpec.newPair("foo", "bar"),
+                ActivitiSpec.newPair("count", 1)));
+        try {
+            spec.check(ActivitiSpec.buildMap(
+                    ActivitiSpec.newPair("foo", "bar"),
+                    ActivitiSpec.newPair("count", 2),
+                    ActivitiSpec.newPair("colour", "red"),
+                    ActivitiSpec.newPair("size", null)));
+            fail("Expected the mismatched variables to be reported");
+        } catch (AssertionError e) {
+            String msg = e.getMessage();
+            assertTrue(msg, msg.startsWith("3 of 4 variables of process '"
+                    + piid + "' do not hold the expected value:"));
+            assertTrue(msg, msg.contains("count: expected <2> but was <1>"));
+            assertTrue(msg,
+                    msg.contains("colour: expected <red> but was not set"));
+            assertTrue(msg,
+                    msg.contains("size: expected <null> but was not set"));
+            assertTrue(msg, !msg.contains("foo:"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testProcessScopePreferred() throws Exception {
+        CheckingSpec spec = start("testProcessScopePreferred");
+        Task task = activitiRule.getTaskService().createTaskQuery()
+                .processInstanceId(spec.getProcessInstance().getId())
+                .singleResult();
+        activitiRule.getTaskService().setVariableLocal(task.getId(), "foo",
+                "baz");
+
+        spec.check(ActivitiSpec.buildMap(ActivitiSpec.newPair("foo", "bar")));
+        // values put on completion are checked the same way
+        spec.whenUserTaskCompleted("doSomething", ActivitiSpec.buildSet(),
+                ActivitiSpec.buildMap(ActivitiSpec.newPair("count", 2)))
+                .thenProcessIsComplete();
+    }
+
+    @SuppressWarnings("unchecked")
+    private CheckingSpec start(String name) {
+        CheckingSpec spec = new CheckingSpec(activitiRule, name);
+        spec.whenEventOccurs("The Example1 process is started", EXAMPLE1_KEY,
+                ActivitiSpec.buildSet(), ActivitiSpec.buildMap(
+                        ActivitiSpec.newPair("foo", "bar"),
+                        ActivitiSpec.newPair("count", 1)), null);
+        return spec;
+    }
+
+    private static class CheckingSpec extends ActivitiSpec {
+
+        public CheckingSpec(ActivitiRule activitiRule, String name) {
+            super(activitiRule, name);
+        }
+
+        public void check(Map<String, Object> expectedVars) {
+            assertVariablesEqual(expectedVars);
+        }
+    }
+}
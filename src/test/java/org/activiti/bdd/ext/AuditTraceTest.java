@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.bdd.ext.AuditTrace.Step;
+import org.activiti.bdd.ext.AuditTrace.StepType;
+import org.activiti.engine.history.HistoricProcessInstance;
+import org.activiti.engine.task.Task;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Export, import and replay of {@link AuditTrace}s.
+ *
+ * @author Tim Stephenson
+ */
+public class AuditTraceTest {
+
+    private static final String SUB_PROCESS_KEY = "SubProcessExample";
+
+    private static final String BOUNDARY_KEY = "BoundaryEvents";
+
+    @Rule
+    public ActivitiRule activitiRule = new ActivitiRule("test-activiti.cfg.xml");
+
+    @Test
+    public void testWriteReadRoundTrip() throws Exception {
+        Map<String, Object> startVars = new LinkedHashMap<String, Object>();
+        startVars.put("name", "Smith & Sons\tLtd = 100%");
+        startVars.put("count", 3);
+        startVars.put("total", 12345678901L);
+        startVars.put("rate", 0.25d);
+        startVars.put("urgent", true);
+        Map<String, Object> taskVars = new LinkedHashMap<String, Object>();
+        taskVars.put("approved", false);
+        AuditTrace trace = new AuditTrace("Order", "1234")
+                .addStep(StepType.START, "startEvent", 0, startVars)
+                .addStep(StepType.USER_TASK, "approve", 1500, taskVars)
+                .addStep(StepType.TRIGGER, "paymentReceived", 60000,
+                        new LinkedHashMap<String, Object>())
+                .addStep(StepType.TIMER, "reminder", 86400000,
+                        new LinkedHashMap<String, Object>());
+        AuditTrace other = new AuditTrace("Invoice", "5678").addStep(
+                StepType.START, "start", 0, new LinkedHashMap<String, Object>());
+
+        StringWriter out = new StringWriter();
+        AuditTrace.write(Arrays.asList(trace, other), out);
+        List<AuditTrace> traces = AuditTrace.read(new StringReader(out
+                .toString()));
+
+        assertEquals(2, traces.size());
+        assertTraceEquals(trace, traces.get(0));
+        assertTraceEquals(other, traces.get(1));
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/SubProcessExample.bpmn" })
+    public void testSubProcessStartIsNotAStep() throws Exception {
+        String piid = runSubProcessExample();
+
+        AuditTrace trace = AuditTrace.fromHistory(
+                activitiRule.getHistoryService(), piid);
+
+        assertEquals(SUB_PROCESS_KEY, trace.getProcessDefinitionKey());
+        List<StepType> types = new ArrayList<StepType>();
+        List<String> activityIds = new ArrayList<String>();
+        for (Step step : trace.getSteps()) {
+            types.add(step.getType());
+            activityIds.add(step.getActivityId());
+        }
+        assertEquals(Arrays.asList(StepType.START, StepType.USER_TASK,
+                StepType.USER_TASK), types);
+        assertEquals(Arrays.asList("startEvent", "checkDetails", "approve"),
+                activityIds);
+        assertEquals(100, trace.getSteps().get(0).getVariables()
+                .get("amount"));
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/SubProcessExample.bpmn" })
+    public void testReplaySubProcess() throws Exception {
+        String piid = runSubProcessExample();
+        StringWriter out = new StringWriter();
+        AuditTrace.write(Collections.singletonList(AuditTrace.fromHistory(
+                activitiRule.getHistoryService(), piid)), out);
+        AuditTrace trace = AuditTrace.read(new StringReader(out.toString()))
+                .get(0);
+
+        String replayedId = new AuditTrailReplayer(
+                activitiRule.getProcessEngine()).stepTimeout(1000).replay(
+                trace);
+
+        assertNotNull(replayedId);
+        assertFalse(piid.equals(replayedId));
+        assertEquals(2, activitiRule.getHistoryService()
+                .createHistoricProcessInstanceQuery()
+                .processDefinitionKey(SUB_PROCESS_KEY).count());
+        HistoricProcessInstance replayed = activitiRule.getHistoryService()
+                .createHistoricProcessInstanceQuery()
+                .processInstanceId(replayedId).singleResult();
+        assertNotNull("Replayed process did not complete",
+                replayed.getEndTime());
+        assertEquals(100, activitiRule.getHistoryService()
+                .createHistoricVariableInstanceQuery()
+                .processInstanceId(replayedId).variableName("amount")
+                .singleResult().getValue());
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/BoundaryEvents.bpmn" })
+    public void testReplayBoundaryTimer() throws Exception {
+        String piid = activitiRule.getRuntimeService()
+                .startProcessInstanceByKey(BOUNDARY_KEY).getId();
+        activitiRule.getManagementService().executeJob(
+                activitiRule.getManagementService().createJobQuery()
+                        .processInstanceId(piid).timers().singleResult()
+                        .getId());
+        completeTask(piid, "chase");
+
+        AuditTrace trace = AuditTrace.fromHistory(
+                activitiRule.getHistoryService(), piid);
+        assertStepsEqual(Arrays.asList(StepType.START, StepType.TIMER,
+                StepType.USER_TASK), Arrays.asList("startEvent", "tooLate",
+                "chase"), trace);
+
+        String replayedId = new AuditTrailReplayer(
+                activitiRule.getProcessEngine()).stepTimeout(1000).replay(
+                trace);
+
+        assertEnded(replayedId, "endEvent");
+        assertEquals(1, activitiRule.getHistoryService()
+                .createHistoricActivityInstanceQuery()
+                .processInstanceId(replayedId).activityId("tooLate").count());
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/BoundaryEvents.bpmn" })
+    public void testReplayBoundaryMessage() throws Exception {
+        String piid = activitiRule.getRuntimeService()
+                .startProcessInstanceByKey(BOUNDARY_KEY).getId();
+        activitiRule.getRuntimeService().messageEventReceived(
+                "cancel",
+                activitiRule.getRuntimeService().createExecutionQuery()
+                        .processInstanceId(piid)
+                        .messageEventSubscriptionName("cancel")
+                        .singleResult().getId());
+
+        AuditTrace trace = AuditTrace.fromHistory(
+                activitiRule.getHistoryService(), piid);
+        assertStepsEqual(Arrays.asList(StepType.START, StepType.TRIGGER),
+                Arrays.asList("startEvent", "cancelled"), trace);
+
+        String replayedId = new AuditTrailReplayer(
+                activitiRule.getProcessEngine()).stepTimeout(1000).replay(
+                trace);
+
+        // signalling the task's execution would have left by the normal flow
+        assertEnded(replayedId, "cancelledEnd");
+    }
+
+    @SuppressWarnings("unchecked")
+    private String runSubProcessExample() {
+        String piid = activitiRule
+                .getRuntimeService()
+                .startProcessInstanceByKey(
+                        SUB_PROCESS_KEY,
+                        ActivitiSpec.buildMap(ActivitiSpec.newPair("amount",
+                                100))).getId();
+        completeTask(piid, "checkDetails");
+        completeTask(piid, "approve");
+        return piid;
+    }
+
+    private void completeTask(String piid, String taskDefinitionKey) {
+        Task task = activitiRule.getTaskService().createTaskQuery()
+                .processInstanceId(piid).taskDefinitionKey(taskDefinitionKey)
+                .singleResult();
+        assertNotNull("No task " + taskDefinitionKey, task);
+        activitiRule.getTaskService().complete(task.getId());
+    }
+
+    private void assertStepsEqual(List<StepType> types,
+            List<String> activityIds, AuditTrace trace) {
+        List<StepType> actualTypes = new ArrayList<StepType>();
+        List<String> actualActivityIds = new ArrayList<String>();
+        for (Step step : trace.getSteps()) {
+            actualTypes.add(step.getType());
+            actualActivityIds.add(step.getActivityId());
+        }
+        assertEquals(types, actualTypes);
+        assertEquals(activityIds, actualActivityIds);
+    }
+
+    private void assertEnded(String piid, String endActivityId) {
+        HistoricProcessInstance replayed = activitiRule.getHistoryService()
+                .createHistoricProcessInstanceQuery().processInstanceId(piid)
+                .singleResult();
+        assertNotNull("Replayed process did not complete",
+                replayed.getEndTime());
+        assertEquals(endActivityId, replayed.getEndActivityId());
+    }
+
+    private void assertTraceEquals(AuditTrace expected, AuditTrace actual) {
+        assertEquals(expected.getProcessDefinitionKey(),
+                actual.getProcessDefinitionKey());
+        assertEquals(expected.getSourceId(), actual.getSourceId());
+        assertEquals(expected.getSteps().size(), actual.getSteps().size());
+        for (int i = 0; i < expected.getSteps().size(); i++) {
+            Step want = expected.getSteps().get(i);
+            Step got = actual.getSteps().get(i);
+            assertEquals(want.getType(), got.getType());
+            assertEquals(want.getActivityId(), got.getActivityId());
+            assertEquals(want.getOffsetMillis(), got.getOffsetMillis());
+            assertEquals(want.getVariables(), got.getVariables());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Bucket and percentile arithmetic of {@link LatencyHistogram}.
+ *
+ * @author Tim Stephenson
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void testValuesBelow64AreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 64; i++) {
+            assertEquals(i, LatencyHistogram.bucketIndex(i));
+            assertEquals(i, LatencyHistogram.bucketUpperBound(i));
+            histogram.record(i);
+        }
+        assertEquals(64, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(31, histogram.getValueAtPercentile(50));
+        assertEquals(57, histogram.getValueAtPercentile(90));
+        assertEquals(63, histogram.getValueAtPercentile(100));
+        assertEquals(31.5d, histogram.getMean(), 0.0d);
+    }
+
+    @Test
+    public void testSubBucketBoundaries() {
+        // from 64 values share buckets, two to a bucket up to 128
+        assertEquals(64, LatencyHistogram.bucketIndex(64));
+        assertEquals(64, LatencyHistogram.bucketIndex(65));
+        assertEquals(65, LatencyHistogram.bucketIndex(66));
+        assertEquals(65, LatencyHistogram.bucketUpperBound(64));
+        assertEquals(95, LatencyHistogram.bucketIndex(127));
+        assertEquals(96, LatencyHistogram.bucketIndex(128));
+        assertEquals(131, LatencyHistogram.bucketUpperBound(96));
+
+        int last = LatencyHistogram.bucketIndex(Long.MAX_VALUE);
+        for (int i = 64; i < last; i++) {
+            long upper = LatencyHistogram.bucketUpperBound(i);
+            long lower = LatencyHistogram.bucketUpperBound(i - 1) + 1;
+            assertEquals(i, LatencyHistogram.bucketIndex(lower));
+            assertEquals(i, LatencyHistogram.bucketIndex(upper));
+            assertEquals(i + 1, LatencyHistogram.bucketIndex(upper + 1));
+            assertTrue("Bucket " + i + " is too wide",
+                    (double) (upper - lower) / lower <= 1.0d / 32);
+        }
+    }
+
+    @Test
+    public void testPercentileIsBucketUpperBoundCappedAtMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(64);
+        assertEquals(64, histogram.getValueAtPercentile(50));
+        histogram.record(1000);
+        // 64 shares a bucket with 65, 1000 with values up to 1007
+        assertEquals(65, histogram.getValueAtPercentile(50));
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+        histogram.record(2000);
+        assertEquals(1007, histogram.getValueAtPercentile(60));
+    }
+
+    @Test
+    public void testMaxValue() {
+        int last = LatencyHistogram.bucketIndex(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(last));
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.getMin());
+        assertEquals(Long.MAX_VALUE, histogram.getMax());
+        assertEquals(1, histogram.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(99.9));
+    }
+
+    @Test
+    public void testMerge() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        b.record(20);
+        b.record(30);
+        a.merge(b);
+        assertEquals(3, a.getCount());
+        assertEquals(10, a.getMin());
+        assertEquals(30, a.getMax());
+        assertEquals(20, a.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getMin());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeValueRejected() {
+        new LatencyHistogram().record(-1);
+    }
+}
@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.ext;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Delays drawn from each kind of {@link LatencyProfile}.
+ *
+ * @author Tim Stephenson
+ */
+public class LatencyProfileTest {
+
+    private static final int DRAWS = 1000;
+
+    @Test
+    public void testFixed() {
+        assertEquals(0, LatencyProfile.NONE.nextMillis());
+        assertEquals(25, LatencyProfile.fixed(25).nextMillis());
+    }
+
+    @Test
+    public void testUniformWithinRange() {
+        LatencyProfile profile = LatencyProfile.uniform(10, 20);
+        for (int i = 0; i < DRAWS; i++) {
+            long millis = profile.nextMillis();
+            assertTrue(String.valueOf(millis), millis >= 10 && millis <= 20);
+        }
+        assertEquals(5, LatencyProfile.uniform(5, 5).nextMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUniformMaxBelowMin() {
+        LatencyProfile.uniform(20, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUniformNegative() {
+        LatencyProfile.uniform(-1, 10);
+    }
+
+    @Test
+    public void testLogNormalMedian() {
+        LatencyProfile profile = LatencyProfile.logNormal(100, 1000);
+        int below = 0;
+        for (int i = 0; i < DRAWS; i++) {
+            long millis = profile.nextMillis();
+            assertTrue(String.valueOf(millis), millis >= 0);
+            if (millis < 100) {
+                below++;
+            }
+        }
+        // about half, allowing for chance
+        assertTrue(String.valueOf(below), below > 400 && below < 600);
+    }
+
+    @Test
+    public void testEmpiricalDrawsOnlySamples() {
+        LatencyProfile profile = LatencyProfile.empirical(Arrays.asList(3L,
+                7L));
+        for (int i = 0; i < DRAWS; i++) {
+            long millis = profile.nextMillis();
+            assertTrue(String.valueOf(millis), millis == 3 || millis == 7);
+        }
+        assertEquals(LatencyProfile.NONE,
+                LatencyProfile.empirical(Collections.<Long> emptyList()));
+    }
+}
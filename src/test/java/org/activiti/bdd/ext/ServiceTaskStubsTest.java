@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.ext;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * Stubbing, recording and replaying service tasks with
+ * {@link ServiceTaskStubs}.
+ *
+ * @author Tim Stephenson
+ */
+public class ServiceTaskStubsTest {
+
+    private static final String KEY = "CheckCredit";
+
+    private static final String ACTIVITY_ID = "checkCredit";
+
+    public ActivitiRule activitiRule = new ActivitiRule("test-activiti.cfg.xml");
+
+    public ServiceTaskStubs stubs = new ServiceTaskStubs(activitiRule);
+
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Rule
+    public RuleChain rules = RuleChain.outerRule(folder).around(activitiRule)
+            .around(stubs);
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/CheckCredit.bpmn" })
+    public void testReplayFixedResponse() {
+        // the real delegate would approve this amount
+        stubs.replay(KEY, ACTIVITY_ID, ActivitiSpec.buildMap(ActivitiSpec
+                .newPair("creditOk", false)), LatencyProfile.fixed(0));
+
+        assertEquals(false, startAndGetCreditOk(500));
+
+        stubs.restore();
+        assertEquals(true, startAndGetCreditOk(500));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/CheckCredit.bpmn" })
+    public void testRestoredOnTeardown() throws Throwable {
+        final ServiceTaskStubs scenarioStubs = new ServiceTaskStubs(
+                activitiRule.getProcessEngine());
+        scenarioStubs.apply(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                scenarioStubs.replay(KEY, ACTIVITY_ID, ActivitiSpec
+                        .buildMap(ActivitiSpec.newPair("creditOk", false)),
+                        LatencyProfile.NONE);
+                assertEquals(false, startAndGetCreditOk(500));
+            }
+        }, Description.createTestDescription(getClass(), "scenario"))
+                .evaluate();
+
+        assertEquals(true, startAndGetCreditOk(500));
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/CheckCredit.bpmn" })
+    public void testRecordThenReplayInTurn() {
+        stubs.record(KEY, ACTIVITY_ID);
+        assertEquals(true, startAndGetCreditOk(500));
+        assertEquals(false, startAndGetCreditOk(5000));
+        assertEquals(2, stubs.getRecordingCount(KEY, ACTIVITY_ID));
+
+        stubs.replay(KEY, ACTIVITY_ID);
+
+        // responses do not depend on the amount any more
+        assertEquals(true, startAndGetCreditOk(5000));
+        assertEquals(false, startAndGetCreditOk(500));
+        assertEquals(true, startAndGetCreditOk(5000));
+        // replays are not recorded again
+        assertEquals(2, stubs.getRecordingCount(KEY, ACTIVITY_ID));
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/CheckCredit.bpmn" })
+    public void testSaveAndLoadRecordings() throws Exception {
+        stubs.record(KEY, ACTIVITY_ID);
+        startAndGetCreditOk(5000);
+        File file = folder.newFile("recordings.ser");
+        stubs.saveRecordings(file);
+        stubs.uninstall();
+
+        ServiceTaskStubs loaded = new ServiceTaskStubs(
+                activitiRule.getProcessEngine()).loadRecordings(file);
+        try {
+            assertEquals(1, loaded.getRecordingCount(KEY, ACTIVITY_ID));
+            loaded.replay(KEY, ACTIVITY_ID);
+            assertEquals(false, startAndGetCreditOk(500));
+        } finally {
+            loaded.uninstall();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    @org.activiti.engine.test.Deployment(resources = { "processes/CheckCredit.bpmn" })
+    public void testReplayWithoutRecording() {
+        stubs.replay(KEY, ACTIVITY_ID);
+    }
+
+    private Object startAndGetCreditOk(int amount) {
+        Map<String, Object> vars = new HashMap<String, Object>();
+        vars.put("amount", amount);
+        String piid = activitiRule.getRuntimeService()
+                .startProcessInstanceByKey(KEY, vars).getId();
+        return activitiRule.getRuntimeService().getVariable(piid, "creditOk");
+    }
+}
@@ -0,0 +1,125 @@
+package org.activiti.bdd.test.activiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.activiti.engine.impl.ProcessInstanceQueryImpl;
+import org.activiti.engine.impl.cmd.StartProcessInstanceCmd;
+import org.activiti.engine.impl.interceptor.Command;
+import org.activiti.engine.impl.interceptor.CommandContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Command counts of {@link CommandProfiler} and its JMX registration.
+ *
+ * <p>
+ * The job executor shares the engine, so only commands this test alone
+ * issues are counted exactly.
+ *
+ * @author Tim Stephenson
+ */
+public class CommandProfilerTest {
+
+    @Rule
+    public ExtendedRule activitiRule = new ExtendedRule("test-activiti.cfg.xml");
+
+    private CommandProfiler profiler;
+
+    @Before
+    public void setUp() {
+        profiler = activitiRule.installCommandProfiler();
+        profiler.reset();
+    }
+
+    @After
+    public void tearDown() {
+        activitiRule.uninstallCommandProfiler();
+    }
+
+    @Test
+    public void testInstalledOnce() {
+        assertSame(profiler, activitiRule.installCommandProfiler());
+        assertSame(profiler, CommandProfiler.find(activitiRule
+                .getProcessEngineConfiguration()));
+
+        activitiRule.uninstallCommandProfiler();
+        assertNull(CommandProfiler.find(activitiRule
+                .getProcessEngineConfiguration()));
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testCommandsCounted() {
+        long threadCommands = profiler.getThreadCommandCount();
+        long flushes = profiler.getFlushCount();
+
+        activitiRule.getRuntimeService().startProcessInstanceByKey("Example1");
+        activitiRule.getRuntimeService().createProcessInstanceQuery().list();
+
+        assertEquals(threadCommands + 2, profiler.getThreadCommandCount());
+        assertEquals(Long.valueOf(1), profiler.getCommandCounts().get(
+                StartProcessInstanceCmd.class.getName()));
+        assertEquals(Long.valueOf(1), profiler.getCommandCounts().get(
+                ProcessInstanceQueryImpl.class.getName()));
+        assertTrue(profiler.getFlushCount() >= flushes + 2);
+        // at least the execution, task and their history are inserted
+        assertTrue(profiler.getMaxEntityEventsPerCommand() >= 2);
+        assertTrue(profiler.getEntityEventCount() >= profiler
+                .getMaxEntityEventsPerCommand());
+    }
+
+    @Test
+    public void testNestedCommandsShareOneFlush() {
+        long threadCommands = profiler.getThreadCommandCount();
+
+        final Command<Void> outer = new Command<Void>() {
+            public Void execute(CommandContext commandContext) {
+                activitiRule.getRuntimeService().createProcessInstanceQuery()
+                        .list();
+                activitiRule.getRuntimeService().createProcessInstanceQuery()
+                        .list();
+                return null;
+            }
+        };
+        activitiRule.getManagementService().executeCommand(outer);
+
+        assertEquals(threadCommands + 1, profiler.getThreadCommandCount());
+        assertEquals(Long.valueOf(1), profiler.getCommandCounts().get(
+                outer.getClass().getName()));
+        assertEquals(Long.valueOf(2), profiler.getCommandCounts().get(
+                ProcessInstanceQueryImpl.class.getName()));
+        assertTrue(profiler.getCommandMillis().containsKey(
+                outer.getClass().getName()));
+    }
+
+    @Test
+    public void testRegisteredWithJmx() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(
+                "org.activiti.bdd:type=CommandProfiler,engine="
+                        + ObjectName.quote(activitiRule.getProcessEngine()
+                                .getName()));
+        assertTrue(server.isRegistered(name));
+
+        activitiRule.getRuntimeService().createProcessInstanceQuery().list();
+        assertTrue((Long) server.getAttribute(name, "FlushCount") > 0);
+
+        server.invoke(name, "reset", null, null);
+        assertFalse(profiler.getCommandCounts().containsKey(
+                ProcessInstanceQueryImpl.class.getName()));
+
+        activitiRule.uninstallCommandProfiler();
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,146 @@
+package org.activiti.bdd.test.activiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * Element hashing and persistence of {@link CoverageIndex}.
+ *
+ * @author Tim Stephenson
+ */
+public class CoverageIndexTest {
+
+    private static final String MODEL = "<definitions xmlns=\"http://www.omg.org/spec/BPMN/20100524/MODEL\""
+            + " xmlns:bpmndi=\"http://www.omg.org/spec/BPMN/20100524/DI\""
+            + " xmlns:dc=\"http://www.omg.org/spec/DD/20100524/DC\">"
+            + "<process id=\"Order\">"
+            + "<startEvent id=\"start\"/>"
+            + "<sequenceFlow id=\"f1\" sourceRef=\"start\" targetRef=\"check\"/>"
+            + "<exclusiveGateway id=\"check\"/>"
+            + "<sequenceFlow id=\"f2\" sourceRef=\"check\" targetRef=\"approve\">"
+            + "<conditionExpression>${amount &lt; 1000}</conditionExpression>"
+            + "</sequenceFlow>"
+            + "<userTask id=\"approve\" name=\"Approve\"/>"
+            + "<sequenceFlow id=\"f3\" sourceRef=\"approve\" targetRef=\"end\"/>"
+            + "%1$s"
+            + "<endEvent id=\"end\"/>"
+            + "</process>"
+            + "<bpmndi:BPMNDiagram><bpmndi:BPMNPlane bpmnElement=\"Order\">"
+            + "<bpmndi:BPMNShape bpmnElement=\"approve\">"
+            + "<dc:Bounds height=\"55\" width=\"85\" x=\"%2$d\" y=\"100\"/>"
+            + "</bpmndi:BPMNShape></bpmndi:BPMNPlane></bpmndi:BPMNDiagram>"
+            + "</definitions>";
+
+    @Test
+    public void testLayoutDoesNotChangeHashes() throws IOException {
+        Map<String, String> before = hash(model("", 100));
+        Map<String, String> after = hash(model("", 250));
+        assertEquals(before, after);
+        assertTrue(before.containsKey("Order:"));
+        assertTrue(before.containsKey("Order:approve"));
+        assertTrue(before.containsKey("Order:f2"));
+    }
+
+    @Test
+    public void testConditionEditChangesFlowAndEnds() throws IOException {
+        Map<String, String> before = hash(model("", 100));
+        Map<String, String> after = hash(model("", 100).replace(
+                "amount &lt; 1000", "amount &lt; 5000"));
+        assertFalse(before.get("Order:f2").equals(after.get("Order:f2")));
+        assertFalse(before.get("Order:check").equals(after.get("Order:check")));
+        assertFalse(before.get("Order:approve").equals(
+                after.get("Order:approve")));
+        assertEquals(before.get("Order:start"), after.get("Order:start"));
+        assertEquals(before.get("Order:end"), after.get("Order:end"));
+    }
+
+    @Test
+    public void testNewFlowChangesGateway() throws IOException {
+        Map<String, String> before = hash(model("", 100));
+        Map<String, String> after = hash(model(
+                "<sequenceFlow id=\"f4\" sourceRef=\"check\" targetRef=\"end\">"
+                        + "<conditionExpression>${amount &gt;= 1000}</conditionExpression>"
+                        + "</sequenceFlow>", 100));
+        assertFalse(before.get("Order:check").equals(after.get("Order:check")));
+        assertFalse(before.get("Order:end").equals(after.get("Order:end")));
+        assertEquals(before.get("Order:approve"), after.get("Order:approve"));
+
+        CoverageIndex index = new CoverageIndex(null);
+        index.setCoverage("OrderTest#testApprove",
+                covered(before, "Order:", "Order:start", "Order:check",
+                        "Order:approve"));
+        // the process element excludes children with ids of their own
+        assertEquals(Arrays.asList("Order:check"),
+                index.getChangedElements("OrderTest#testApprove", after));
+    }
+
+    @Test
+    public void testUncoveredScenarioAlwaysRuns() {
+        CoverageIndex index = new CoverageIndex(null);
+        assertNull(index.getChangedElements("OrderTest#testNothing",
+                new HashMap<String, String>()));
+        index.setCoverage("OrderTest#testNothing",
+                Collections.<String, String> emptyMap());
+        assertNull(index.getChangedElements("OrderTest#testNothing",
+                new HashMap<String, String>()));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        File file = File.createTempFile("coverage", ".idx");
+        file.deleteOnExit();
+        Map<String, String> hashes = hash(model("", 100));
+        CoverageIndex index = CoverageIndex.load(file);
+        index.setCoverage("OrderTest#testApprove",
+                covered(hashes, "Order:", "Order:start", "Order:approve"));
+        index.setCoverage("OrderTest#testNothing",
+                Collections.<String, String> emptyMap());
+        index.save();
+
+        CoverageIndex loaded = CoverageIndex.load(file);
+        assertEquals(index.getCoverage("OrderTest#testApprove"),
+                loaded.getCoverage("OrderTest#testApprove"));
+        assertEquals(0, loaded.getCoverage("OrderTest#testNothing").size());
+        assertNull(loaded.getCoverage("OrderTest#testOther"));
+        assertEquals(0, loaded.getChangedElements("OrderTest#testApprove",
+                hashes).size());
+    }
+
+    @Test
+    public void testLoadMissingFile() throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"),
+                "no-such-coverage-" + System.nanoTime() + ".idx");
+        assertNull(CoverageIndex.load(file).getCoverage("OrderTest#testApprove"));
+    }
+
+    private static String model(String extraFlow, int x) {
+        return String.format(MODEL, extraFlow, x);
+    }
+
+    private static Map<String, String> hash(String bpmn) throws IOException {
+        return CoverageIndex.hashElements(new ByteArrayInputStream(bpmn
+                .getBytes("UTF-8")));
+    }
+
+    private static Map<String, String> covered(Map<String, String> hashes,
+            String... elements) {
+        Map<String, String> covered = new TreeMap<String, String>();
+        for (String element : elements) {
+            covered.put(element, hashes.get(element));
+        }
+        return covered;
+    }
+}
@@ -0,0 +1,113 @@
+package org.activiti.bdd.test.activiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.bdd.ExternalAction;
+import org.activiti.engine.ProcessEngine;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Capture and restore of {@link DatabaseSnapshot}, directly and through
+ * {@link ActivitiSpec#given(String, ExternalAction)}.
+ *
+ * @author Tim Stephenson
+ */
+public class DatabaseSnapshotTest {
+
+    private static final String SNAPSHOT_NAME = "one Example1 process is waiting";
+
+    @Rule
+    public ActivitiRule activitiRule = new ActivitiRule("test-activiti.cfg.xml");
+
+    @After
+    public void tearDown() {
+        ProcessEngine processEngine = activitiRule.getProcessEngine();
+        DatabaseSnapshot.discard(processEngine, SNAPSHOT_NAME);
+        // the snapshot holds the deployment so it is removed only now
+        for (org.activiti.engine.repository.Deployment deployment : activitiRule
+                .getRepositoryService().createDeploymentQuery().list()) {
+            activitiRule.getRepositoryService().deleteDeployment(
+                    deployment.getId(), true);
+        }
+    }
+
+    @Test
+    public void testRestoreDiscardsLaterWork() throws Exception {
+        ProcessEngine processEngine = activitiRule.getProcessEngine();
+        RuntimeService runtimeService = activitiRule.getRuntimeService();
+        deployExample1();
+        String kept = runtimeService.startProcessInstanceByKey("Example1")
+                .getId();
+
+        DatabaseSnapshot snapshot = DatabaseSnapshot.capture(processEngine,
+                SNAPSHOT_NAME);
+        assertTrue(snapshot.size() > 0);
+        assertEquals(snapshot, DatabaseSnapshot.get(processEngine,
+                SNAPSHOT_NAME));
+
+        String discarded = runtimeService.startProcessInstanceByKey("Example1")
+                .getId();
+        assertEquals(2, runtimeService.createProcessInstanceQuery().count());
+
+        snapshot.restore(processEngine);
+
+        assertEquals(1, runtimeService.createProcessInstanceQuery().count());
+        assertNotNull(runtimeService.createProcessInstanceQuery()
+                .processInstanceId(kept).singleResult());
+        assertNull(runtimeService.createProcessInstanceQuery()
+                .processInstanceId(discarded).singleResult());
+        assertEquals(1, activitiRule.getTaskService().createTaskQuery()
+                .count());
+
+        // ids issued before the restore must not be reused
+        String started = runtimeService.startProcessInstanceByKey("Example1")
+                .getId();
+        assertFalse(discarded.equals(started));
+        assertTrue(Long.parseLong(started) > Long.parseLong(discarded));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testGivenRunsSetupOnce() throws Exception {
+        final int[] setups = new int[1];
+        ExternalAction setup = new ExternalAction() {
+            @Override
+            public void execute(ActivitiSpec activitiSpec) throws Exception {
+                setups[0]++;
+                deployExample1();
+                activitiSpec.whenEventOccurs("Example1 is started",
+                        "Example1", ActivitiSpec.buildSet(),
+                        ActivitiSpec.buildMap(), null);
+            }
+        };
+
+        ActivitiSpec first = new ActivitiSpec(activitiRule,
+                "testGivenRunsSetupOnce").given(SNAPSHOT_NAME, setup);
+        String piid = first.getProcessInstance().getId();
+        activitiRule.getRuntimeService().startProcessInstanceByKey("Example1");
+
+        ActivitiSpec second = new ActivitiSpec(activitiRule,
+                "testGivenRunsSetupOnce again").given(SNAPSHOT_NAME, setup);
+
+        assertEquals(1, setups[0]);
+        assertEquals(piid, second.getProcessInstance().getId());
+        assertEquals(1, activitiRule.getRuntimeService()
+                .createProcessInstanceQuery().count());
+        second.thenUserTask("doSomething", ActivitiSpec.buildSet(),
+                ActivitiSpec.buildMap()).thenProcessIsComplete();
+    }
+
+    private void deployExample1() {
+        activitiRule.getRepositoryService().createDeployment()
+                .addClasspathResource("processes/Example1.bpmn").deploy();
+    }
+}
@@ -0,0 +1,155 @@
+package org.activiti.bdd.test.activiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.activiti.engine.impl.history.HistoryLevel;
+import org.activiti.engine.task.Task;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+/**
+ * Purging of the process instances registered with {@link ExtendedRule}.
+ *
+ * @author Tim Stephenson
+ */
+public class ExtendedRuleTest {
+
+    private static final String EXAMPLE1_KEY = "Example1";
+
+    @Rule
+    public ExtendedRule activitiRule = new ExtendedRule("test-activiti.cfg.xml");
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testPurgeOnFinish() throws Throwable {
+        final ExtendedRule scenarioRule = new ExtendedRule(
+                activitiRule.getProcessEngine());
+        scenarioRule.setPurgeOnFinish(true);
+        final List<String> piids = new ArrayList<String>();
+        String unregistered = start(null);
+
+        scenarioRule.apply(new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                piids.add(start(scenarioRule));
+                piids.add(start(scenarioRule));
+                complete(piids.get(0));
+            }
+        }, Description.createTestDescription(getClass(), "scenario"))
+                .evaluate();
+
+        for (String piid : piids) {
+            assertPurged(piid);
+        }
+        assertEquals(1, countRuntime(unregistered));
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testPurgeFinishedInBatches() {
+        List<String> piids = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            piids.add(start(activitiRule));
+        }
+        for (int i = 0; i < 3; i++) {
+            complete(piids.get(i));
+        }
+
+        assertEquals(3, activitiRule.purgeFinished(2));
+
+        for (int i = 0; i < 3; i++) {
+            assertPurged(piids.get(i));
+        }
+        for (int i = 3; i < 5; i++) {
+            assertEquals(1, countRuntime(piids.get(i)));
+        }
+        // only the running instances remain registered
+        assertEquals(2, activitiRule.purgeRegistered(2));
+        for (String piid : piids) {
+            assertPurged(piid);
+        }
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testBackgroundPurge() throws Exception {
+        List<String> piids = new ArrayList<String>();
+        for (int i = 0; i < 4; i++) {
+            piids.add(start(activitiRule));
+        }
+        activitiRule.startBackgroundPurge(20, 3);
+        try {
+            for (String piid : piids) {
+                complete(piid);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (countHistoric(piids) > 0
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+        } finally {
+            // rethrows any failure of the background purge
+            activitiRule.stopBackgroundPurge();
+        }
+        for (String piid : piids) {
+            assertPurged(piid);
+        }
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testPurgeWithoutHistory() {
+        activitiRule.setHistoryLevel(HistoryLevel.NONE);
+        String piid = start(activitiRule);
+
+        activitiRule.purgeProcessTree(piid);
+
+        assertPurged(piid);
+    }
+
+    private String start(ExtendedRule rule) {
+        String piid = activitiRule.getRuntimeService()
+                .startProcessInstanceByKey(EXAMPLE1_KEY).getId();
+        if (rule != null) {
+            rule.registerProcessInstance(piid);
+        }
+        return piid;
+    }
+
+    private void complete(String piid) {
+        Task task = activitiRule.getTaskService().createTaskQuery()
+                .processInstanceId(piid).singleResult();
+        activitiRule.getTaskService().complete(task.getId());
+    }
+
+    private void assertPurged(String piid) {
+        assertEquals(0, countRuntime(piid));
+        List<String> piids = new ArrayList<String>();
+        piids.add(piid);
+        assertEquals(0, countHistoric(piids));
+        assertTrue(activitiRule.getHistoryService()
+                .createHistoricActivityInstanceQuery().processInstanceId(piid)
+                .list().isEmpty());
+    }
+
+    private long countRuntime(String piid) {
+        return activitiRule.getRuntimeService().createProcessInstanceQuery()
+                .processInstanceId(piid).count();
+    }
+
+    private long countHistoric(List<String> piids) {
+        long count = 0;
+        for (String piid : piids) {
+            count += activitiRule.getHistoryService()
+                    .createHistoricProcessInstanceQuery()
+                    .processInstanceId(piid).count();
+        }
+        return count;
+    }
+}
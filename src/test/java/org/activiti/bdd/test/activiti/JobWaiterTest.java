@@ -0,0 +1,87 @@
+package org.activiti.bdd.test.activiti;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Waiting for jobs with {@link JobWaiter} and the reporting of jobs that
+ * fail.
+ *
+ * @author Tim Stephenson
+ */
+public class JobWaiterTest {
+
+    private static final String PROCESS_KEY = "AsyncServiceTask";
+
+    /** Failed jobs are retried only after this long, by default. */
+    private static final long RETRY_WAIT = 10000;
+
+    @Rule
+    public ExtendedRule activitiRule = new ExtendedRule("test-activiti.cfg.xml");
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/AsyncServiceTask.bpmn" })
+    public void testWaitsForJobs() {
+        String piid = start(false);
+
+        new JobWaiter(activitiRule.getProcessEngine()).waitForJobs(
+                Collections.singleton(piid), 5000);
+
+        activitiRule.assertComplete(piid);
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/AsyncServiceTask.bpmn" })
+    public void testFailsOnFirstFailure() {
+        String piid = start(true);
+
+        long start = System.currentTimeMillis();
+        try {
+            new JobWaiter(activitiRule.getProcessEngine()).waitForJobs(
+                    Collections.singleton(piid), 2 * RETRY_WAIT);
+            fail("Expected the failing job to be reported");
+        } catch (AssertionError e) {
+            // without waiting for the job to be retried
+            assertTrue(System.currentTimeMillis() - start < RETRY_WAIT);
+            assertTrue(e.getMessage(), e.getMessage().contains(
+                    "failed at activity 'work' of process instance " + piid));
+            assertTrue(e.getMessage(), e.getMessage().contains("undefinedBean"));
+        }
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/AsyncServiceTask.bpmn" })
+    public void testEarlierAndOtherFailuresIgnored() {
+        JobWaiter waiter = new JobWaiter(activitiRule.getProcessEngine());
+        String failing = start(true);
+        try {
+            waiter.waitForJobs(Collections.singleton(failing), RETRY_WAIT);
+            fail("Expected the failing job to be reported");
+        } catch (AssertionError e) {
+            // now an earlier failure
+        }
+
+        // the failure of another process instance does not fail the wait
+        String passing = start(false);
+        waiter.waitForJobs(Collections.singleton(passing), 5000);
+        activitiRule.assertComplete(passing);
+
+        // nor does a failure that was there before the wait began, its retry
+        // is not yet due
+        waiter.waitForJobs(Collections.singleton(failing), 200);
+    }
+
+    private String start(boolean shouldFail) {
+        Map<String, Object> vars = new HashMap<String, Object>();
+        vars.put("shouldFail", shouldFail);
+        return activitiRule.getRuntimeService()
+                .startProcessInstanceByKey(PROCESS_KEY, vars).getId();
+    }
+}
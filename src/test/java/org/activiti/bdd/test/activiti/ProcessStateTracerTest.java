@@ -0,0 +1,112 @@
+package org.activiti.bdd.test.activiti;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.activiti.engine.task.Task;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Tracing only what changed in a process instance with
+ * {@link ProcessStateTracer}.
+ *
+ * @author Tim Stephenson
+ */
+public class ProcessStateTracerTest {
+
+    private static final String PROCESS_KEY = "Example1";
+
+    private static final String TASK = "'Do something' (doSomething)";
+
+    @Rule
+    public ExtendedRule activitiRule = new ExtendedRule("test-activiti.cfg.xml");
+
+    private ProcessStateTracer tracer;
+
+    @Before
+    public void setUp() {
+        tracer = new ProcessStateTracer(activitiRule.getProcessEngine());
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testDeltas() {
+        String piid = start(Collections.<String, Object> singletonMap(
+                "amount", 1));
+
+        List<String> first = tracer.trace(piid);
+        assertTrue(first.toString(), first.contains("  + activity 'startEvent'"));
+        assertTrue(first.toString(),
+                first.contains("  - activity 'startEvent' (finished)"));
+        assertTrue(first.toString(), first.contains("  + activity 'doSomething'"));
+        assertTrue(first.toString(), first.contains("  + var amount = 1"));
+        assertTrue(first.toString(), first.contains("  + task " + TASK));
+
+        assertEquals(Collections.emptyList(), tracer.trace(piid));
+
+        activitiRule.getRuntimeService().setVariable(piid, "amount", 2);
+        assertEquals(Arrays.asList("  ~ var amount: 1 -> 2"),
+                tracer.trace(piid));
+
+        Task task = activitiRule.getTaskService().createTaskQuery()
+                .processInstanceId(piid).singleResult();
+        activitiRule.getTaskService().complete(task.getId());
+        assertEquals(Arrays.asList("  - activity 'doSomething' (finished)",
+                "  + activity 'endEvent'", "  - activity 'endEvent' (finished)",
+                "  - task " + TASK, "  process ended"), tracer.trace(piid));
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testResetTracesWholeStateAgain() {
+        String piid = start(Collections.<String, Object> singletonMap(
+                "amount", 1));
+        List<String> first = tracer.trace(piid);
+
+        tracer.reset();
+
+        assertEquals(first, tracer.trace(piid));
+    }
+
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/Example1.bpmn" })
+    public void testLongValuesAreShortened() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < ProcessStateTracer.MAX_VALUE_LENGTH * 2; i++) {
+            text.append('x');
+        }
+        Map<String, Object> vars = new HashMap<String, Object>();
+        vars.put("text", text.toString());
+        vars.put("bytes", new byte[] { 1, 2, 3 });
+        String piid = start(vars);
+
+        List<String> first = tracer.trace(piid);
+        assertTrue(first.toString(), first.contains(String.format(
+                "  + var text = %1$s...#%2$08x",
+                text.substring(0, ProcessStateTracer.MAX_VALUE_LENGTH), text
+                        .toString().hashCode())));
+        assertTrue(first.toString(), first.contains(String.format(
+                "  + var bytes = byte[3]#%1$08x",
+                Arrays.hashCode(new byte[] { 1, 2, 3 }))));
+
+        // a change past the cut still shows
+        activitiRule.getRuntimeService().setVariable(piid, "text",
+                text.append('y').toString());
+        List<String> changes = tracer.trace(piid);
+        assertEquals(changes.toString(), 1, changes.size());
+        assertTrue(changes.get(0), changes.get(0).startsWith("  ~ var text: "));
+    }
+
+    private String start(Map<String, Object> vars) {
+        return activitiRule.getRuntimeService()
+                .startProcessInstanceByKey(PROCESS_KEY, vars).getId();
+    }
+}
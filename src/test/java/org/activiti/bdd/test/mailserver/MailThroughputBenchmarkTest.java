@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.test.mailserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.activiti.bdd.ActivitiSpec;
+import org.activiti.engine.test.ActivitiRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+
+/**
+ * Runs the {@link MailThroughputBenchmark} against a slow relay.
+ *
+ * @author Tim Stephenson
+ */
+public class MailThroughputBenchmarkTest {
+
+    private static final int INSTANCES = 10;
+
+    public ActivitiRule activitiRule = new ActivitiRule("test-activiti.cfg.xml");
+
+    public TestMailServer mailServer = new TestMailServer(activitiRule);
+
+    @Rule
+    public RuleChain chain = RuleChain.outerRule(activitiRule).around(
+            mailServer);
+
+    @SuppressWarnings("unchecked")
+    @Test
+    @org.activiti.engine.test.Deployment(resources = { "processes/SendMail.bpmn" })
+    public void testThroughputAgainstSlowRelay() throws Exception {
+        mailServer.setDataLatency(20);
+
+        MailThroughputBenchmark.Result result = new MailThroughputBenchmark(
+                activitiRule, mailServer).run("SendMail", ActivitiSpec
+                .buildMap(ActivitiSpec.newPair("recipient",
+                        "someone@example.com")), INSTANCES, 30000);
+
+        assertEquals(INSTANCES, result.getInstances());
+        assertEquals(INSTANCES, result.getMailsReceived());
+        assertEquals(0, result.getRejected());
+        // each mail is held up by the relay
+        assertTrue(result.getElapsedMillis() >= 20);
+        assertTrue(result.getMailsPerSecond() > 0.0d);
+        assertEquals(INSTANCES, mailServer.getDeliveryLatencies().size());
+    }
+}
@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Activiti Behaviour Driven Development (BDD) library
+ * Copyright 2015 Tim Stephenson
+ *
+ *******************************************************************************/
+package org.activiti.bdd.test.mailserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.activation.DataHandler;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+
+import org.activiti.engine.ProcessEngineConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Mail capture by {@link TestMailServer}, without an engine.
+ *
+ * @author Tim Stephenson
+ */
+public class TestMailServerTest {
+
+    private static final String FROM = "sender@example.com";
+
+    private static final String TO = "someone@example.com";
+
+    @Rule
+    public TestMailServer mailServer = new TestMailServer(0);
+
+    @Test
+    public void testMessageParsedOnce() throws Exception {
+        send(mailServer.getPort(), "Hello", "Plain text body");
+
+        ParsedMessage message = mailServer.getParsedMessage(0);
+        assertSame(message, mailServer.getParsedMessage(0));
+        assertSame(message, mailServer.getParsedMessages().get(0));
+        assertEquals("Hello", message.getSubject());
+        assertEquals(FROM, message.getEnvelopeSender());
+        assertEquals(TO, message.getEnvelopeReceiver());
+        assertEquals(Arrays.asList("Plain text body"), message.getTextParts());
+        assertTrue(message.getAttachments().isEmpty());
+
+        mailServer.assertEmailSend(0, false, "Hello", "Plain text body", FROM,
+                TO, null);
+    }
+
+    @Test
+    public void testMultipartParsedIntoTextAndAttachments() throws Exception {
+        MimeMultipart multipart = new MimeMultipart();
+        MimeBodyPart text = new MimeBodyPart();
+        text.setText("See attached");
+        multipart.addBodyPart(text);
+        MimeBodyPart attachment = new MimeBodyPart();
+        attachment.setDataHandler(new DataHandler(new ByteArrayDataSource(
+                new byte[] { 1, 2, 3, 4 }, "application/octet-stream")));
+        attachment.setFileName("data.bin");
+        multipart.addBodyPart(attachment);
+        send(mailServer.getPort(), "Report", multipart);
+
+        ParsedMessage message = mailServer.getParsedMessage(0);
+        assertTrue(message.getContentType().startsWith("multipart/mixed"));
+        assertEquals(Arrays.asList("See attached"), message.getTextParts());
+        assertEquals(1, message.getAttachments().size());
+        assertEquals("data.bin", message.getAttachments().get(0).getFileName());
+    }
+
+    @Test
+    public void testParallelServersOnEphemeralPorts() throws Throwable {
+        ProcessEngineConfiguration config = ProcessEngineConfiguration
+                .createStandaloneInMemProcessEngineConfiguration();
+        TestMailServer other = new TestMailServer(config);
+        other.before();
+        try {
+            assertTrue(mailServer.getPort() > 0);
+            assertFalse(mailServer.getPort() == other.getPort());
+            assertEquals("localhost", config.getMailServerHost());
+            assertEquals(other.getPort(), config.getMailServerPort());
+
+            send(other.getPort(), "To the other server", "Body");
+            assertEquals(1, other.getWiser().getMessages().size());
+            assertEquals(0, mailServer.getWiser().getMessages().size());
+        } finally {
+            other.after();
+        }
+    }
+
+    @Test
+    public void testRetriesPortTakenBeforeBind() throws Throwable {
+        final ServerSocket taken = new ServerSocket(0);
+        final AtomicInteger lookups = new AtomicInteger();
+        TestMailServer server = new TestMailServer(0) {
+            @Override
+            protected int findFreePort() throws IOException {
+                // as if a parallel worker bound the first port found
+                return lookups.incrementAndGet() == 1 ? taken.getLocalPort()
+                        : super.findFreePort();
+            }
+        };
+        try {
+            server.before();
+            try {
+                assertEquals(2, lookups.get());
+                assertFalse(server.getPort() == taken.getLocalPort());
+                send(server.getPort(), "After retry", "Body");
+                assertEquals(1, server.getWiser().getMessages().size());
+            } finally {
+                server.after();
+            }
+        } finally {
+            taken.close();
+        }
+    }
+
+    @Test
+    public void testAwaitEmailsReturnsOnArrival() throws Exception {
+        mailServer.markJobExecutionStart();
+        Thread sender = sendLater(200, "First", "Second");
+        long start = System.currentTimeMillis();
+        List<ParsedMessage> messages = mailServer.awaitEmails(2, 10000);
+        long waited = System.currentTimeMillis() - start;
+        sender.join();
+
+        assertEquals(2, messages.size());
+        assertTrue("Waited for the whole timeout", waited < 10000);
+        assertEquals(2, mailServer.getDeliveryLatencies().size());
+        assertTrue(mailServer.getDeliveryLatencies().get(0) >= 200);
+    }
+
+    @Test
+    public void testAwaitEmailsWithFilter() throws Exception {
+        Thread sender = sendLater(100, "Reminder", "Invoice", "Reminder");
+        List<ParsedMessage> reminders = mailServer.awaitEmails(
+                new TestMailServer.MessageFilter() {
+                    public boolean matches(ParsedMessage message) {
+                        return "Reminder".equals(message.getSubject());
+                    }
+                }, 2, 10000);
+        sender.join();
+
+        assertEquals(2, reminders.size());
+        for (ParsedMessage message : reminders) {
+            assertEquals("Reminder", message.getSubject());
+        }
+    }
+
+    @Test
+    public void testAwaitEmailsFailsOnTimeout() throws Exception {
+        send(mailServer.getPort(), "Only one", "Body");
+        long start = System.currentTimeMillis();
+        try {
+            mailServer.awaitEmails(2, 300);
+            fail("Timeout not reported");
+        } catch (AssertionError e) {
+            assertEquals("Expected 2 messages within 300 ms but only 1 arrived",
+                    e.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start >= 300);
+        assertEquals(1, mailServer.waitForEmails(null, 2, 100).size());
+    }
+
+    private Thread sendLater(final long delayMillis, final String... subjects) {
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(delayMillis);
+                    for (String subject : subjects) {
+                        send(mailServer.getPort(), subject, "Body");
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        sender.start();
+        return sender;
+    }
+
+    static void send(int port, String subject, Object content)
+            throws MessagingException {
+        Properties props = new Properties();
+        props.put("mail.smtp.host", "localhost");
+        props.put("mail.smtp.port", String.valueOf(port));
+        MimeMessage message = new MimeMessage(Session.getInstance(props));
+        message.setFrom(new InternetAddress(FROM));
+        message.setRecipients(Message.RecipientType.TO, TO);
+        message.setSubject(subject);
+        if (content instanceof MimeMultipart) {
+            message.setContent((MimeMultipart) content);
+        } else {
+            message.setText((String) content);
+        }
+        Transport.send(message);
+    }
+}